@@ -0,0 +1,110 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import unitypackage.model.ParallelExtractor;
+import unitypackage.model.UnityArchiveInputStream;
+import unitypackage.model.UnityAsset;
+import unitypackage.model.UnityPackage;
+
+/**
+ * Reading assets out of an already indexed package.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AssetReadBenchmark {
+
+    /** Same as the --extract-all command. */
+    private static final int WRITER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final long MAX_BUFFERED_BYTES = 256 * 1024 * 1024;
+
+    /** How much of the package file is read at a time. */
+    @Param({"1048576"})
+    public int readAheadSize;
+
+    private UnityPackage unityPackage;
+    private List<UnityAsset> fileAssets;
+    private Path extractDirectory;
+
+    private final Random random = new Random(1);
+    private final byte[] buffer = new byte[64 * 1024];
+
+    @Setup
+    public void open(GeneratedPackage generated) throws IOException {
+        unityPackage = new UnityPackage(generated.file);
+        unityPackage.setReadAheadSize(readAheadSize);
+        fileAssets = new ArrayList<>();
+        for (UnityAsset asset : unityPackage.getUnityAssetList()) {
+            if (!asset.isProbablyDirectory()) {
+                fileAssets.add(asset);
+            }
+        }
+        extractDirectory = generated.directory.resolve("extracted");
+    }
+
+    /**
+     * A random file each time, like picking files in the tree.
+     */
+    @Benchmark
+    public long getFileStream() throws IOException {
+        UnityAsset asset = fileAssets.get(random.nextInt(fileAssets.size()));
+        long total = 0;
+        try (InputStream is = unityPackage.getFileStream(asset)) {
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * The files are written over the ones from the last time.
+     */
+    @Benchmark
+    public void extractAll() throws IOException {
+        ParallelExtractor extractor = new ParallelExtractor(WRITER_THREADS, MAX_BUFFERED_BYTES);
+        try (UnityArchiveInputStream unityIS = unityPackage.getUnityArchiveInputStream()) {
+            extractor.extract(unityIS, extractDirectory, (asset, file) -> { });
+        }
+    }
+}
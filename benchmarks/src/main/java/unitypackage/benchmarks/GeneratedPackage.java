@@ -0,0 +1,91 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A {@link SyntheticPackage} written to a temporary directory for each combination of the parameters.
+ */
+@State(Scope.Benchmark)
+public class GeneratedPackage {
+
+    @Param({"1000", "20000", "100000"})
+    public int assets;
+
+    @Param({"FLAT", "BALANCED", "DEEP"})
+    public SyntheticPackage.Shape shape;
+
+    @Param({"2048"})
+    public int assetBytes;
+
+    @Param({"0"})
+    public double previewFraction;
+
+    /** Mix the tar entries of this many assets together. */
+    @Param({"0"})
+    public int shuffleWindow;
+
+    @Param({"1"})
+    public long seed;
+
+    /** Scratch space for the benchmarks, deleted at the end. */
+    public Path directory;
+    public File file;
+
+    @Setup
+    public void generate() throws IOException {
+        directory = Files.createTempDirectory("unitypackage-benchmark");
+        file = directory.resolve("generated.unitypackage").toFile();
+        new SyntheticPackage.Builder()
+                .seed(seed)
+                .assetCount(assets)
+                .shape(shape)
+                .assetBytes(assetBytes, assetBytes)
+                .previewFraction(previewFraction)
+                .shuffleWindow(shuffleWindow)
+                .build()
+                .write(file.toPath());
+    }
+
+    @TearDown
+    public void delete() throws IOException {
+        deleteRecursively(directory);
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
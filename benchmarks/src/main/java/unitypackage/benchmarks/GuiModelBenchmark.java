@@ -0,0 +1,83 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.swing.tree.DefaultTreeModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import unitypackage.viewer.gui.model.SearchResult;
+import unitypackage.viewer.gui.model.UnitypackageGuiModel;
+
+/**
+ * What the GUI does after opening a package: building the tree, and searching it.
+ * The index cache goes in the temporary directory of the package instead of the home directory.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class GuiModelBenchmark {
+
+    private GeneratedPackage generated;
+    private UnitypackageGuiModel searchModel;
+
+    @Setup
+    public void open(GeneratedPackage generated) throws IOException {
+        this.generated = generated;
+        System.setProperty("user.home", generated.directory.toString());
+        // Also fills the index cache, so the tree benchmark doesn't measure indexing
+        searchModel = new UnitypackageGuiModel();
+        searchModel.buildTreeModel(generated.file);
+    }
+
+    /**
+     * Opening a package that is already in the index cache.
+     */
+    @Benchmark
+    public DefaultTreeModel buildTreeModel() throws IOException {
+        return new UnitypackageGuiModel().buildTreeModel(generated.file);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Query {
+        /** A name, part of a path, and an extension. */
+        @Param({"f12", "d1/f", ".shader"})
+        public String text;
+    }
+
+    @Benchmark
+    public List<SearchResult> search(Query query) {
+        return searchModel.search(query.text);
+    }
+}
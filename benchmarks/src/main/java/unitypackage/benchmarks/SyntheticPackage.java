@@ -0,0 +1,512 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import javax.imageio.ImageIO;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+/**
+ * Writes a made up .unitypackage, for benchmarks and for trying the viewer on
+ * packages of any size without needing real Unity assets.
+ * <p>
+ * The same settings and seed always make the same package. Asset contents are
+ * generated while they're written, so packages can be much bigger than memory.
+ * <p>
+ * Can also be run from the command line, see {@link #main(String[])}.
+ */
+public class SyntheticPackage {
+
+    /**
+     * How the assets are spread over directories.
+     */
+    public enum Shape {
+        /** Every file in one directory. */
+        FLAT,
+        /** A couple of levels of directories, a few hundred files in each. */
+        BALANCED,
+        /** Many levels of small directories. */
+        DEEP
+    }
+
+    private static final String[] TEXT_EXTENSIONS = { ".cs", ".mat", ".prefab", ".shader" };
+    private static final String[] BINARY_EXTENSIONS = { ".png", ".fbx", ".wav" };
+    private static final long DATE_MODIFIED_MILLIS = 1700000000L * 1000;
+    private static final int PREVIEW_SIZE = 32;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final long seed;
+    private final int assetCount;
+    private final Shape shape;
+    private final long minAssetBytes;
+    private final long maxAssetBytes;
+    private final double binaryFraction;
+    private final double previewFraction;
+    private final double missingDirectoryFraction;
+    private final int shuffleWindow;
+
+    private SyntheticPackage(Builder builder) {
+        seed = builder.seed;
+        assetCount = builder.assetCount;
+        shape = builder.shape;
+        minAssetBytes = builder.minAssetBytes;
+        maxAssetBytes = builder.maxAssetBytes;
+        binaryFraction = builder.binaryFraction;
+        previewFraction = builder.previewFraction;
+        missingDirectoryFraction = builder.missingDirectoryFraction;
+        shuffleWindow = builder.shuffleWindow;
+    }
+
+    public static class Builder {
+        private long seed = 1;
+        private int assetCount = 1000;
+        private Shape shape = Shape.BALANCED;
+        private long minAssetBytes = 2048;
+        private long maxAssetBytes = 2048;
+        private double binaryFraction;
+        private double previewFraction;
+        private double missingDirectoryFraction;
+        private int shuffleWindow;
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Number of file assets. Directory assets are added for the directories they're in.
+         */
+        public Builder assetCount(int assetCount) {
+            this.assetCount = assetCount;
+            return this;
+        }
+
+        public Builder shape(Shape shape) {
+            this.shape = shape;
+            return this;
+        }
+
+        /**
+         * File sizes are spread evenly on a log scale between the two,
+         * so there are many small files and a few big ones.
+         */
+        public Builder assetBytes(long minAssetBytes, long maxAssetBytes) {
+            this.minAssetBytes = minAssetBytes;
+            this.maxAssetBytes = maxAssetBytes;
+            return this;
+        }
+
+        /**
+         * How many of the files are random bytes instead of text.
+         */
+        public Builder binaryFraction(double binaryFraction) {
+            this.binaryFraction = binaryFraction;
+            return this;
+        }
+
+        /**
+         * How many of the files have a "preview.png".
+         */
+        public Builder previewFraction(double previewFraction) {
+            this.previewFraction = previewFraction;
+            return this;
+        }
+
+        /**
+         * How many of the directories only exist in the paths of their files,
+         * without their own asset.
+         */
+        public Builder missingDirectoryFraction(double missingDirectoryFraction) {
+            this.missingDirectoryFraction = missingDirectoryFraction;
+            return this;
+        }
+
+        /**
+         * When more than 1, the tar entries of this many assets at a time are shuffled together,
+         * so the files of an asset aren't next to each other.
+         */
+        public Builder shuffleWindow(int shuffleWindow) {
+            this.shuffleWindow = shuffleWindow;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the settings don't make sense.
+         */
+        public SyntheticPackage build() {
+            if (assetCount < 0) {
+                throw new IllegalArgumentException("Negative asset count " + assetCount);
+            }
+            if (minAssetBytes < 0 || maxAssetBytes < minAssetBytes) {
+                throw new IllegalArgumentException("Bad asset size range " + minAssetBytes + " to " + maxAssetBytes);
+            }
+            checkFraction("binary", binaryFraction);
+            checkFraction("preview", previewFraction);
+            checkFraction("missing directory", missingDirectoryFraction);
+            if (shuffleWindow < 0) {
+                throw new IllegalArgumentException("Negative shuffle window " + shuffleWindow);
+            }
+            return new SyntheticPackage(this);
+        }
+
+        private static void checkFraction(String name, double fraction) {
+            if (!(fraction >= 0 && fraction <= 1)) {
+                throw new IllegalArgumentException("The " + name + " fraction should be from 0 to 1: " + fraction);
+            }
+        }
+    }
+
+    /**
+     * One entry in the tar.
+     */
+    private static class Entry {
+        final String name;
+        /** Null for the contents of a file asset, which are generated while writing. */
+        final byte[] contents;
+        final long size;
+        final boolean binary;
+        final long contentSeed;
+
+        /** A directory. */
+        Entry(String name) {
+            this(name, null, 0, false, 0);
+        }
+
+        /** A small file. */
+        Entry(String name, byte[] contents) {
+            this(name, contents, contents.length, false, 0);
+        }
+
+        Entry(String name, byte[] contents, long size, boolean binary, long contentSeed) {
+            this.name = name;
+            this.contents = contents;
+            this.size = size;
+            this.binary = binary;
+            this.contentSeed = contentSeed;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    /**
+     * What was written.
+     */
+    public static class Summary {
+        public int fileAssets;
+        public int directoryAssets;
+        public int previews;
+        public long assetBytes;
+
+        @Override
+        public String toString() {
+            return String.format("%,d files, %,d directory assets, %,d previews, %,d bytes of assets",
+                                 fileAssets, directoryAssets, previews, assetBytes);
+        }
+    }
+
+    public Summary write(Path unitypackageFile) throws IOException {
+        Random random = new Random(seed);
+        // The order of the entries is random separately, so it doesn't change what's in them
+        Random shuffleRandom = new Random(~seed);
+        Summary summary = new Summary();
+
+        // Directories first, like Unity exports them
+        Map<String, Boolean> directories = new LinkedHashMap<>();
+        String[] filePaths = new String[assetCount];
+        for (int i = 0; i < assetCount; i++) {
+            String directory = directoryOf(i);
+            for (int slash = directory.indexOf('/'); slash >= 0; slash = directory.indexOf('/', slash + 1)) {
+                directories.putIfAbsent(directory.substring(0, slash), Boolean.TRUE);
+            }
+            directories.putIfAbsent(directory, Boolean.TRUE);
+            filePaths[i] = directory + "/f" + i;
+        }
+
+        try (OutputStream fileOut = new BufferedOutputStream(Files.newOutputStream(unitypackageFile), CHUNK_SIZE);
+             TarArchiveOutputStream tarOut = new TarArchiveOutputStream(new GZIPOutputStream(fileOut, CHUNK_SIZE)))
+        {
+            tarOut.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tarOut.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+            List<Entry> window = new ArrayList<>();
+            int assetsInWindow = 0;
+
+            for (String directory : directories.keySet()) {
+                String guid = randomGuid(random);
+                if (random.nextDouble() < missingDirectoryFraction) {
+                    continue;
+                }
+                addAssetEntries(window, guid, directory, null, null);
+                summary.directoryAssets++;
+                if (++assetsInWindow >= Math.max(1, shuffleWindow)) {
+                    writeWindow(tarOut, window, shuffleRandom);
+                    assetsInWindow = 0;
+                }
+            }
+
+            for (String filePath : filePaths) {
+                String guid = randomGuid(random);
+                long size = randomSize(random);
+                boolean binary = random.nextDouble() < binaryFraction;
+                boolean preview = random.nextDouble() < previewFraction;
+                long contentSeed = random.nextLong();
+
+                String[] extensions = binary ? BINARY_EXTENSIONS : TEXT_EXTENSIONS;
+                String path = filePath + extensions[(int) Math.floorMod(contentSeed, (long) extensions.length)];
+                Entry asset = new Entry(guid + "/asset", null, size, binary, contentSeed);
+                addAssetEntries(window, guid, path, asset, preview ? makePreview(contentSeed) : null);
+
+                summary.fileAssets++;
+                summary.assetBytes += size;
+                if (preview) {
+                    summary.previews++;
+                }
+                if (++assetsInWindow >= Math.max(1, shuffleWindow)) {
+                    writeWindow(tarOut, window, shuffleRandom);
+                    assetsInWindow = 0;
+                }
+            }
+            writeWindow(tarOut, window, shuffleRandom);
+        }
+        return summary;
+    }
+
+    private String directoryOf(int asset) {
+        switch (shape) {
+            case FLAT:
+                return "Assets";
+            case BALANCED:
+                return "Assets/D" + (asset % 20) + "/S" + (asset / 20 % 8);
+            case DEEP:
+                StringBuilder sb = new StringBuilder("Assets");
+                // Each level splits the assets 4 ways, about 8 files per directory at the bottom
+                for (int group = asset / 8; group > 0; group /= 4) {
+                    sb.append("/d").append(group % 4);
+                }
+                return sb.toString();
+            default:
+                throw new IllegalStateException(shape.toString());
+        }
+    }
+
+    private static String randomGuid(Random random) {
+        return String.format("%016x%016x", random.nextLong(), random.nextLong());
+    }
+
+    private long randomSize(Random random) {
+        if (maxAssetBytes == minAssetBytes) {
+            return minAssetBytes;
+        }
+        double logMin = Math.log(minAssetBytes + 1);
+        double logMax = Math.log(maxAssetBytes + 1);
+        long size = (long) Math.exp(logMin + random.nextDouble() * (logMax - logMin)) - 1;
+        return Math.max(minAssetBytes, Math.min(maxAssetBytes, size));
+    }
+
+    /**
+     * A small picture in colors picked from the seed.
+     */
+    private static byte[] makePreview(long contentSeed) throws IOException {
+        Random random = new Random(contentSeed);
+        BufferedImage image = new BufferedImage(PREVIEW_SIZE, PREVIEW_SIZE, BufferedImage.TYPE_INT_RGB);
+        int color1 = random.nextInt(0x1000000);
+        int color2 = random.nextInt(0x1000000);
+        for (int y = 0; y < PREVIEW_SIZE; y++) {
+            for (int x = 0; x < PREVIEW_SIZE; x++) {
+                image.setRGB(x, y, ((x / 4 + y / 4) & 1) == 0 ? color1 : color2);
+            }
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        return png.toByteArray();
+    }
+
+    /**
+     * @param asset Null for a directory asset.
+     * @param preview Null if there isn't one.
+     */
+    private static void addAssetEntries(List<Entry> entries, String guid, String path, Entry asset, byte[] preview) {
+        entries.add(new Entry(guid + "/"));
+        if (asset != null) {
+            entries.add(asset);
+        }
+        entries.add(new Entry(guid + "/asset.meta", ("fileFormatVersion: 2\nguid: " + guid + "\n").getBytes(StandardCharsets.UTF_8)));
+        entries.add(new Entry(guid + "/pathname", (path + "\n00").getBytes(StandardCharsets.UTF_8)));
+        if (preview != null) {
+            entries.add(new Entry(guid + "/preview.png", preview));
+        }
+    }
+
+    /**
+     * Writes the entries and empties the list.
+     * The files are shuffled if there are several assets in the window,
+     * but the directory entries stay first.
+     */
+    private void writeWindow(TarArchiveOutputStream tarOut, List<Entry> window, Random shuffleRandom) throws IOException {
+        List<Entry> files = window;
+        if (shuffleWindow > 1) {
+            files = new ArrayList<>();
+            for (Entry entry : window) {
+                if (entry.isDirectory()) {
+                    writeEntry(tarOut, entry);
+                } else {
+                    files.add(entry);
+                }
+            }
+            Collections.shuffle(files, shuffleRandom);
+        }
+        for (Entry entry : files) {
+            writeEntry(tarOut, entry);
+        }
+        window.clear();
+    }
+
+    private static void writeEntry(TarArchiveOutputStream tarOut, Entry entry) throws IOException {
+        TarArchiveEntry tarEntry = new TarArchiveEntry(entry.name);
+        tarEntry.setModTime(DATE_MODIFIED_MILLIS);
+        if (!entry.isDirectory()) {
+            tarEntry.setSize(entry.size);
+        }
+        tarOut.putArchiveEntry(tarEntry);
+        if (entry.contents != null) {
+            tarOut.write(entry.contents);
+        } else if (!entry.isDirectory()) {
+            writeGeneratedContents(tarOut, entry);
+        }
+        tarOut.closeArchiveEntry();
+    }
+
+    /**
+     * Random bytes for binary files, or text that compresses about as well as scripts and YAML do.
+     */
+    private static void writeGeneratedContents(OutputStream out, Entry entry) throws IOException {
+        Random random = new Random(entry.contentSeed);
+        byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(1, entry.size))];
+        StringBuilder text = new StringBuilder();
+        long remaining = entry.size;
+        while (remaining > 0) {
+            int length = (int) Math.min(chunk.length, remaining);
+            if (entry.binary) {
+                random.nextBytes(chunk);
+            } else {
+                text.setLength(0);
+                while (text.length() < length) {
+                    text.append("    m_Value").append(random.nextInt(64)).append(": ")
+                        .append(random.nextInt(100000)).append('\n');
+                }
+                for (int i = 0; i < length; i++) {
+                    chunk[i] = (byte) text.charAt(i);
+                }
+            }
+            out.write(chunk, 0, length);
+            remaining -= length;
+        }
+    }
+
+    // ...................................................................................
+
+    private static final String USAGE =
+            "Usage: SyntheticPackage <output.unitypackage> [options]\n" +
+            "  --seed N                    (default 1)\n" +
+            "  --assets N                  Number of files (default 1000)\n" +
+            "  --shape flat|balanced|deep  (default balanced)\n" +
+            "  --size MIN[-MAX]            Bytes per file, spread on a log scale (default 2048)\n" +
+            "  --binary FRACTION           Files with random bytes instead of text (default 0)\n" +
+            "  --previews FRACTION         Files with a preview.png (default 0)\n" +
+            "  --missing-directories FRACTION  Directories without their own asset (default 0)\n" +
+            "  --shuffle N                 Mix the tar entries of N assets at a time (default 0)";
+
+    /**
+     * Writes a package from the command line.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        Builder builder = new Builder();
+        SyntheticPackage syntheticPackage = null;
+        try {
+            for (int i = 1; i < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--seed":
+                        builder.seed(Long.parseLong(value));
+                        break;
+                    case "--assets":
+                        builder.assetCount(Integer.parseInt(value));
+                        break;
+                    case "--shape":
+                        builder.shape(Shape.valueOf(value.toUpperCase(Locale.ROOT)));
+                        break;
+                    case "--size":
+                        int dash = value.indexOf('-');
+                        long min = Long.parseLong(dash < 0 ? value : value.substring(0, dash));
+                        long max = dash < 0 ? min : Long.parseLong(value.substring(dash + 1));
+                        builder.assetBytes(min, max);
+                        break;
+                    case "--binary":
+                        builder.binaryFraction(Double.parseDouble(value));
+                        break;
+                    case "--previews":
+                        builder.previewFraction(Double.parseDouble(value));
+                        break;
+                    case "--missing-directories":
+                        builder.missingDirectoryFraction(Double.parseDouble(value));
+                        break;
+                    case "--shuffle":
+                        builder.shuffleWindow(Integer.parseInt(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            syntheticPackage = builder.build();
+        } catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
+            System.out.println(ex instanceof IndexOutOfBoundsException ? "Missing option value" : ex.getMessage());
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        Path output = Paths.get(args[0]);
+        Summary summary = syntheticPackage.write(output);
+        System.out.println("Wrote " + output + ": " + summary);
+    }
+}
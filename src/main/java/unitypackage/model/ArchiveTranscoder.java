@@ -0,0 +1,281 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+/**
+ * Writes the assets of a .unitypackage into a zip or tar under their full Unity paths,
+ * instead of extracting them to separate files.
+ * It's a single pass through the package and a single sequential write.
+ * <p>
+ * For zips, the assets are compressed on a pool of threads while the next ones are read,
+ * and written in order as raw entries. Assets are held in memory until they're written,
+ * up to a limit. Assets too big to hold in memory are compressed by the reading thread itself.
+ */
+public class ArchiveTranscoder {
+
+    /**
+     * Assets bigger than this are compressed directly by the reading thread.
+     */
+    private static final int MAX_BUFFERED_ASSET_SIZE = 16 * 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    public interface Listener {
+        /**
+         * Called from the reading thread once the asset is in the archive.
+         */
+        void transcoded(UnityAsset asset, String entryName);
+    }
+
+    private final int compressionThreads;
+    private final long maxBufferedBytes;
+
+    /**
+     * @param compressionThreads Number of threads compressing zip entries.
+     * @param maxBufferedBytes Most asset data to hold in memory waiting to be written.
+     */
+    public ArchiveTranscoder(int compressionThreads, long maxBufferedBytes) {
+        if (compressionThreads < 1) {
+            throw new IllegalArgumentException("Need at least 1 compression thread " + compressionThreads);
+        }
+        this.compressionThreads = compressionThreads;
+        this.maxBufferedBytes = Math.max(maxBufferedBytes, MAX_BUFFERED_ASSET_SIZE);
+    }
+
+    /**
+     * Writes every asset in the stream to an uncompressed tar.
+     */
+    public void toTar(UnityArchiveInputStream source, OutputStream out, Listener listener) throws IOException {
+        Set<String> entryNames = new HashSet<>();
+        try (TarArchiveOutputStream tarOutput = new TarArchiveOutputStream(out)) {
+            tarOutput.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tarOutput.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            UnityAsset asset;
+            while ((asset = source.getNextEntry()) != null) {
+                String entryName = toEntryName(asset, entryNames);
+                if (entryName == null) {
+                    continue;
+                }
+                TarArchiveEntry entry = new TarArchiveEntry(entryName);
+                entry.setSize(asset.getSize());
+                Date modified = asset.getDateModified();
+                if (modified != null) {
+                    entry.setModTime(modified);
+                }
+                tarOutput.putArchiveEntry(entry);
+                UnityPackageWriter.copy(source, tarOutput, buffer);
+                tarOutput.closeArchiveEntry();
+                listener.transcoded(asset, entryName);
+            }
+        }
+    }
+
+    /**
+     * Writes every asset in the stream to a zip, compressing them in parallel.
+     */
+    public void toZip(UnityArchiveInputStream source, OutputStream out, Listener listener) throws IOException {
+        Set<String> entryNames = new HashSet<>();
+        ArrayDeque<Future<CompressedAsset>> inFlight = new ArrayDeque<>();
+        long bufferedBytes = 0;
+
+        List<Deflater> allDeflaters = new ArrayList<>();
+        ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            synchronized (allDeflaters) {
+                allDeflaters.add(deflater);
+            }
+            return deflater;
+        });
+
+        ExecutorService compressors = Executors.newFixedThreadPool(compressionThreads);
+        try (ZipArchiveOutputStream zipOutput = new ZipArchiveOutputStream(out)) {
+            zipOutput.setUseZip64(Zip64Mode.AsNeeded);
+
+            UnityAsset asset;
+            while ((asset = source.getNextEntry()) != null) {
+                String entryName = toEntryName(asset, entryNames);
+                if (entryName == null) {
+                    continue;
+                }
+                ZipArchiveEntry entry = new ZipArchiveEntry(entryName);
+                Date modified = asset.getDateModified();
+                if (modified != null) {
+                    entry.setTime(modified.getTime());
+                }
+                long size = asset.getSize();
+
+                if (size > MAX_BUFFERED_ASSET_SIZE) {
+                    // Everything before it has to be written first anyway
+                    while (!inFlight.isEmpty()) {
+                        writeCompressed(zipOutput, inFlight.remove(), listener);
+                    }
+                    bufferedBytes = 0;
+                    entry.setSize(size);
+                    entry.setMethod(ZipArchiveEntry.DEFLATED);
+                    zipOutput.putArchiveEntry(entry);
+                    UnityPackageWriter.copy(source, zipOutput, new byte[COPY_BUFFER_SIZE]);
+                    zipOutput.closeArchiveEntry();
+                    listener.transcoded(asset, entryName);
+                    continue;
+                }
+
+                while (!inFlight.isEmpty() && bufferedBytes + size > maxBufferedBytes) {
+                    bufferedBytes -= writeCompressed(zipOutput, inFlight.remove(), listener);
+                }
+                // Write what's ready so it doesn't pile up
+                while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+                    bufferedBytes -= writeCompressed(zipOutput, inFlight.remove(), listener);
+                }
+
+                byte[] contents = ParallelExtractor.readFully(source, (int) size);
+                bufferedBytes += size;
+                final UnityAsset assetToCompress = asset;
+                inFlight.add(compressors.submit(() -> compress(assetToCompress, entry, contents, deflaters.get())));
+            }
+
+            while (!inFlight.isEmpty()) {
+                writeCompressed(zipOutput, inFlight.remove(), listener);
+            }
+        } finally {
+            compressors.shutdownNow();
+            synchronized (allDeflaters) {
+                for (Deflater deflater : allDeflaters) {
+                    deflater.end();
+                }
+            }
+        }
+    }
+
+    private static class CompressedAsset {
+        final UnityAsset asset;
+        final ZipArchiveEntry entry;
+        final byte[] data;
+        final int dataLength;
+        final long uncompressedSize;
+
+        CompressedAsset(UnityAsset asset, ZipArchiveEntry entry, byte[] data, int dataLength, long uncompressedSize) {
+            this.asset = asset;
+            this.entry = entry;
+            this.data = data;
+            this.dataLength = dataLength;
+            this.uncompressedSize = uncompressedSize;
+        }
+    }
+
+    /**
+     * Deflates the contents, or stores them as they are if that's no smaller.
+     */
+    private static CompressedAsset compress(UnityAsset asset, ZipArchiveEntry entry, byte[] contents, Deflater deflater) {
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        entry.setCrc(crc.getValue());
+        entry.setSize(contents.length);
+
+        deflater.reset();
+        deflater.setInput(contents);
+        deflater.finish();
+        byte[] compressed = new byte[Math.max(64, contents.length / 2)];
+        int length = 0;
+        while (!deflater.finished() && length < contents.length) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+
+        if (!deflater.finished() || length >= contents.length) {
+            entry.setMethod(ZipArchiveEntry.STORED);
+            entry.setCompressedSize(contents.length);
+            return new CompressedAsset(asset, entry, contents, contents.length, contents.length);
+        }
+        entry.setMethod(ZipArchiveEntry.DEFLATED);
+        entry.setCompressedSize(length);
+        return new CompressedAsset(asset, entry, compressed, length, contents.length);
+    }
+
+    /**
+     * @return The uncompressed size, which is what was counted as buffered.
+     */
+    private static long writeCompressed(ZipArchiveOutputStream zipOutput, Future<CompressedAsset> future,
+                                        Listener listener) throws IOException {
+        CompressedAsset compressed;
+        try {
+            compressed = future.get();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            throw new IOException("Error compressing", ex.getCause());
+        }
+        zipOutput.addRawArchiveEntry(compressed.entry, new ByteArrayInputStream(compressed.data, 0, compressed.dataLength));
+        listener.transcoded(compressed.asset, compressed.entry.getName());
+        return compressed.uncompressedSize;
+    }
+
+    /**
+     * The full Unity path with "/" separators, or null to skip an asset at the same path as an earlier one.
+     * @throws IOException if the path would end up outside the archive's root.
+     */
+    static String toEntryName(UnityAsset asset, Set<String> entryNames) throws IOException {
+        Path path = Paths.get(asset.getFullPath()).normalize();
+        if (path.isAbsolute() || path.getNameCount() == 0 || path.getName(0).toString().equals("..") ||
+            path.toString().isEmpty())
+        {
+            throw new IOException("Asset path goes outside of the archive: " + asset.getFullPath());
+        }
+        StringBuilder entryName = new StringBuilder();
+        for (Path name : path) {
+            if (entryName.length() > 0) {
+                entryName.append('/');
+            }
+            entryName.append(name);
+        }
+        if (!entryNames.add(entryName.toString())) {
+            System.out.println("[WARN] Skipping " + asset + ", there's already a file at " + entryName);
+            return null;
+        }
+        return entryName.toString();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes extracted files through a {@link FileChannel} from a direct buffer that's reused
+ * for every file, instead of a new stream and small copy buffer each time.
+ * The size of the file is set up front when it's known, so the file system
+ * can allocate it in one go.
+ * <p>
+ * Each file is written to a temp file next to it, then moved over the target,
+ * so an existing file is replaced, not written over, and other hardlinks to it
+ * (like from {@code extract --dedup}) keep their contents. Threads writing the same path
+ * at the same time each replace it whole.
+ * If writing fails, the partly written file is deleted.
+ * <p>
+ * Not thread safe, each writing thread needs its own.
+ */
+public class ChannelFileWriter {
+
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private final ByteBuffer buffer;
+    /** Streams can only be read into arrays. */
+    private final byte[] transfer;
+
+    public ChannelFileWriter() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public ChannelFileWriter(int bufferSize) {
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        transfer = new byte[bufferSize];
+    }
+
+    /**
+     * Replaces the file with the contents.
+     */
+    public void write(Path file, byte[] contents) throws IOException {
+        Path temp = createTemp(file);
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(temp.toFile(), "rw");
+                 FileChannel channel = raf.getChannel())
+            {
+                raf.setLength(contents.length);
+                int pos = 0;
+                while (pos < contents.length) {
+                    int length = Math.min(buffer.capacity(), contents.length - pos);
+                    buffer.clear();
+                    buffer.put(contents, pos, length);
+                    buffer.flip();
+                    writeFully(channel);
+                    pos += length;
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException ex) {
+            deleteAfterFailure(temp, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Replaces the file with the rest of the stream.
+     * @param expectedSize How big the file should end up, used to allocate it up front.
+     * @return How many bytes were written.
+     */
+    public long write(Path file, InputStream in, long expectedSize) throws IOException {
+        Path temp = createTemp(file);
+        try {
+            long written = 0;
+            try (RandomAccessFile raf = new RandomAccessFile(temp.toFile(), "rw");
+                 FileChannel channel = raf.getChannel())
+            {
+                raf.setLength(expectedSize);
+                int read;
+                while ((read = in.read(transfer)) >= 0) {
+                    buffer.clear();
+                    buffer.put(transfer, 0, read);
+                    buffer.flip();
+                    writeFully(channel);
+                    written += read;
+                }
+                if (written != expectedSize) {
+                    raf.setLength(written);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            return written;
+        } catch (IOException | RuntimeException ex) {
+            deleteAfterFailure(temp, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Creates a new, empty file with a unique name next to the target.
+     * Not {@link Files#createTempFile}, which makes the file readable only by the owner.
+     */
+    private static Path createTemp(Path file) throws IOException {
+        String prefix = "." + file.getFileName() + ".";
+        while (true) {
+            Path temp = file.resolveSibling(prefix + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                return Files.createFile(temp);
+            } catch (FileAlreadyExistsException ex) {
+                // Try another name
+            }
+        }
+    }
+
+    private static void deleteAfterFailure(Path file, Exception ex) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException deleteEx) {
+            ex.addSuppressed(deleteEx);
+        }
+    }
+
+    private void writeFully(FileChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
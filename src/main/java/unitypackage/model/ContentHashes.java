@@ -0,0 +1,177 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+
+/**
+ * SHA-256 of the contents of every file asset of a package,
+ * so identical files can be found without comparing them.
+ */
+public class ContentHashes {
+
+    public static final String ALGORITHM = "SHA-256";
+    public static final int HASH_LENGTH = 32;
+
+    private final UnityPackage unityPackage;
+    /** {@link #HASH_LENGTH} bytes for each asset, in the order of the asset list. */
+    private final byte[] hashes;
+    /** Directories and assets not read have no hash. */
+    private final BitSet hashed;
+
+    private ContentHashes(UnityPackage unityPackage, byte[] hashes, BitSet hashed) {
+        this.unityPackage = unityPackage;
+        this.hashes = hashes;
+        this.hashed = hashed;
+    }
+
+    public UnityPackage getUnityPackage() {
+        return unityPackage;
+    }
+
+    public boolean hasHash(UnityAsset asset) {
+        return hashed.get(asset.getIndex());
+    }
+
+    /**
+     * Null if the asset is a directory.
+     */
+    public byte[] getHash(UnityAsset asset) {
+        if (!hasHash(asset)) {
+            return null;
+        }
+        int start = asset.getIndex() * HASH_LENGTH;
+        byte[] hash = new byte[HASH_LENGTH];
+        System.arraycopy(hashes, start, hash, 0, HASH_LENGTH);
+        return hash;
+    }
+
+    /**
+     * The hash in lower case hex, or null if the asset is a directory.
+     */
+    public String getHashString(UnityAsset asset) {
+        if (!hasHash(asset)) {
+            return null;
+        }
+        int start = asset.getIndex() * HASH_LENGTH;
+        StringBuilder sb = new StringBuilder(HASH_LENGTH * 2);
+        for (int i = start; i < start + HASH_LENGTH; i++) {
+            sb.append(Character.forDigit((hashes[i] >> 4) & 0xf, 16))
+              .append(Character.forDigit(hashes[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    // ===================================================================================
+
+    /**
+     * Hashes the contents of assets as they're read.
+     */
+    public static class Builder {
+
+        private final UnityPackage unityPackage;
+        private final byte[] hashes;
+        private final BitSet hashed = new BitSet();
+        private final Hasher hasher = new Hasher();
+
+        public Builder(UnityPackage unityPackage) {
+            this.unityPackage = unityPackage;
+            hashes = new byte[unityPackage.getUnityAssetList().size() * HASH_LENGTH];
+        }
+
+        /**
+         * Reads the rest of the stream but doesn't close it.
+         */
+        public void add(UnityAsset asset, InputStream contents) throws IOException {
+            add(asset, hasher.hash(contents));
+        }
+
+        /**
+         * Adds a hash already computed by a {@link Hasher}.
+         */
+        void add(UnityAsset asset, byte[] hash) {
+            System.arraycopy(hash, 0, hashes, asset.getIndex() * HASH_LENGTH, HASH_LENGTH);
+            hashed.set(asset.getIndex());
+        }
+
+        public ContentHashes build() {
+            return new ContentHashes(unityPackage, hashes, hashed);
+        }
+    }
+
+    /**
+     * Hashes streams, one at a time.
+     */
+    static class Hasher {
+        private final MessageDigest digest;
+        private final byte[] buffer = new byte[64 * 1024];
+
+        Hasher() {
+            try {
+                digest = MessageDigest.getInstance(ALGORITHM);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        /**
+         * Reads the rest of the stream but doesn't close it.
+         */
+        byte[] hash(InputStream contents) throws IOException {
+            int read;
+            while ((read = contents.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+            return digest.digest();
+        }
+    }
+
+    // ===================================================================================
+
+    /**
+     * Saves the hashes for {@link UnityPackageIndexCache}.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(hashes.length / HASH_LENGTH);
+        byte[] hashedBytes = hashed.toByteArray();
+        out.writeInt(hashedBytes.length);
+        out.write(hashedBytes);
+        out.write(hashes);
+    }
+
+    static ContentHashes read(DataInputStream in, UnityPackage unityPackage) throws IOException {
+        int assetCount = in.readInt();
+        if (assetCount != unityPackage.getUnityAssetList().size()) {
+            throw new IOException("Hashes for " + assetCount + " assets but the package has " +
+                                  unityPackage.getUnityAssetList().size());
+        }
+        byte[] hashedBytes = new byte[in.readInt()];
+        in.readFully(hashedBytes);
+        byte[] hashes = new byte[assetCount * HASH_LENGTH];
+        in.readFully(hashes);
+        return new ContentHashes(unityPackage, hashes, BitSet.valueOf(hashedBytes));
+    }
+}
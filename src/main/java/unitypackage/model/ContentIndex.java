@@ -0,0 +1,311 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package unitypackage.model;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the words in the text assets of a .unitypackage
+ * (scripts, shaders, and the YAML files Unity uses for prefabs, materials, etc.)
+ * so they can be searched without reading the .unitypackage again.
+ * <p>
+ * A word is a run of letters, digits and underscores, ignoring case.
+ */
+public class ContentIndex {
+
+    private static final Set<String> TEXT_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "cs", "js", "boo", "shader", "cginc", "hlsl", "glsl", "compute", "raytrace",
+            "prefab", "mat", "asset", "unity", "anim", "controller", "overridecontroller",
+            "mask", "physicmaterial", "physicsmaterial2d", "guiskin", "fontsettings", "mixer",
+            "rendertexture", "flare", "cubemap", "spriteatlas", "playable", "signal", "preset",
+            "shadergraph", "shadersubgraph", "vfx", "asmdef", "asmref", "inputactions",
+            "uss", "uxml", "tss", "txt", "json", "xml", "yaml", "yml", "md", "csv", "html", "htm"));
+
+    /**
+     * If there's a 0 byte in this much of the start of the file, it's not text.
+     * Some of the extensions above can also be binary Unity files.
+     */
+    private static final int BINARY_CHECK_SIZE = 8 * 1024;
+
+    private static final int MIN_WORD_LENGTH = 2;
+    /** Longer runs are usually encoded data, not words. */
+    private static final int MAX_WORD_LENGTH = 64;
+
+    private final UnityPackage unityPackage;
+    private final int indexedAssetCount;
+    /** Word to the sorted indexes (in the package asset list) of the assets that contain it. */
+    private final Map<String, int[]> postings;
+
+    private ContentIndex(UnityPackage unityPackage, int indexedAssetCount, Map<String, int[]> postings) {
+        this.unityPackage = unityPackage;
+        this.indexedAssetCount = indexedAssetCount;
+        this.postings = postings;
+    }
+
+    /**
+     * If the asset's file extension is one that's usually text.
+     */
+    public static boolean isTextAsset(UnityAsset asset) {
+        if (asset.isProbablyDirectory()) {
+            return false;
+        }
+        String name = asset.getFileName();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && TEXT_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    public UnityPackage getUnityPackage() {
+        return unityPackage;
+    }
+
+    /**
+     * How many assets were actually text.
+     */
+    public int getIndexedAssetCount() {
+        return indexedAssetCount;
+    }
+
+    public int getWordCount() {
+        return postings.size();
+    }
+
+    /**
+     * Assets containing all the words in the query, in package order.
+     */
+    public List<UnityAsset> search(String query) {
+        List<String> words = new ArrayList<>(tokenize(query));
+        if (words.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<int[]> lists = new ArrayList<>();
+        for (String word : words) {
+            int[] assets = postings.get(word);
+            if (assets == null) {
+                return Collections.emptyList();
+            }
+            lists.add(assets);
+        }
+        // Start with the fewest assets
+        lists.sort((a, b) -> Integer.compare(a.length, b.length));
+
+        int[] matches = lists.get(0);
+        for (int l = 1; l < lists.size() && matches.length > 0; l++) {
+            matches = intersect(matches, lists.get(l));
+        }
+
+        List<UnityAsset> assetList = unityPackage.getUnityAssetList();
+        List<UnityAsset> found = new ArrayList<>(matches.length);
+        for (int index : matches) {
+            found.add(assetList.get(index));
+        }
+        return found;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static Set<String> tokenize(String text) {
+        Set<String> words = new HashSet<>();
+        try {
+            tokenize(new StringReader(text), words);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return words;
+    }
+
+    private static void tokenize(Reader reader, Set<String> words) throws IOException {
+        StringBuilder word = new StringBuilder();
+        char[] buffer = new char[8192];
+        int read;
+        while ((read = reader.read(buffer)) > 0) {
+            for (int i = 0; i < read; i++) {
+                char c = buffer[i];
+                if (Character.isLetterOrDigit(c) || c == '_') {
+                    word.append(Character.toLowerCase(c));
+                } else {
+                    addWord(word, words);
+                }
+            }
+        }
+        addWord(word, words);
+    }
+
+    private static void addWord(StringBuilder word, Set<String> words) {
+        if (word.length() >= MIN_WORD_LENGTH && word.length() <= MAX_WORD_LENGTH) {
+            words.add(word.toString());
+        }
+        word.setLength(0);
+    }
+
+    // ===================================================================================
+
+    /**
+     * Collects the words of assets as they're read,
+     * for example from a {@link UnityArchiveInputStream}.
+     */
+    public static class Builder {
+
+        private final UnityPackage unityPackage;
+        private final Map<String, IntList> postings = new HashMap<>();
+        private int indexedAssetCount;
+
+        public Builder(UnityPackage unityPackage) {
+            this.unityPackage = unityPackage;
+        }
+
+        /**
+         * Indexes the asset if its contents look like text.
+         * The stream is read but not closed.
+         */
+        public void add(UnityAsset asset, InputStream contents) throws IOException {
+            int assetIndex = asset.getIndex();
+
+            BufferedInputStream in = new BufferedInputStream(contents, BINARY_CHECK_SIZE);
+            if (looksBinary(in)) {
+                return;
+            }
+
+            Set<String> words = new HashSet<>();
+            tokenize(new InputStreamReader(in, StandardCharsets.UTF_8), words);
+            for (String word : words) {
+                postings.computeIfAbsent(word, w -> new IntList()).add(assetIndex);
+            }
+            indexedAssetCount++;
+        }
+
+        private static boolean looksBinary(BufferedInputStream in) throws IOException {
+            in.mark(BINARY_CHECK_SIZE);
+            byte[] start = new byte[BINARY_CHECK_SIZE];
+            int length = 0;
+            int read;
+            while (length < start.length && (read = in.read(start, length, start.length - length)) > 0) {
+                length += read;
+            }
+            in.reset();
+            for (int i = 0; i < length; i++) {
+                if (start[i] == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public ContentIndex build() {
+            Map<String, int[]> finished = new HashMap<>(postings.size() * 4 / 3 + 1);
+            for (Map.Entry<String, IntList> entry : postings.entrySet()) {
+                finished.put(entry.getKey(), entry.getValue().toSortedArray());
+            }
+            return new ContentIndex(unityPackage, indexedAssetCount, finished);
+        }
+    }
+
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        /**
+         * Sorted, since assets aren't necessarily read in package order.
+         */
+        int[] toSortedArray() {
+            int[] array = Arrays.copyOf(values, size);
+            Arrays.sort(array);
+            return array;
+        }
+    }
+
+    // ===================================================================================
+
+    /**
+     * Saves the index for {@link UnityPackageIndexCache}.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(indexedAssetCount);
+        out.writeInt(postings.size());
+        for (Map.Entry<String, int[]> entry : postings.entrySet()) {
+            out.writeUTF(entry.getKey());
+            int[] assets = entry.getValue();
+            out.writeInt(assets.length);
+            int previous = 0;
+            for (int index : assets) {
+                // Small gaps compress better
+                out.writeInt(index - previous);
+                previous = index;
+            }
+        }
+    }
+
+    static ContentIndex read(DataInputStream in, UnityPackage unityPackage) throws IOException {
+        int indexedAssetCount = in.readInt();
+        int wordCount = in.readInt();
+        Map<String, int[]> postings = new HashMap<>(wordCount * 4 / 3 + 1);
+        for (int w = 0; w < wordCount; w++) {
+            String word = in.readUTF();
+            int[] assets = new int[in.readInt()];
+            int previous = 0;
+            for (int i = 0; i < assets.length; i++) {
+                previous += in.readInt();
+                assets[i] = previous;
+            }
+            postings.put(word, assets);
+        }
+        return new ContentIndex(unityPackage, indexedAssetCount, postings);
+    }
+}
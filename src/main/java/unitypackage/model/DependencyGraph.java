@@ -0,0 +1,425 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which assets reference which other assets, from the {@code {fileID: ..., guid: ..., type: ...}}
+ * references in the YAML files Unity uses for prefabs, materials, scenes, etc. and in the .meta files.
+ * <p>
+ * GUIDs referenced that aren't in the package (Unity's built in resources, other packages)
+ * are kept too, so it's possible to see what a package needs from outside.
+ */
+public class DependencyGraph {
+
+    private static final Set<String> YAML_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "prefab", "mat", "asset", "unity", "anim", "controller", "overridecontroller",
+            "mask", "physicmaterial", "physicsmaterial2d", "guiskin", "fontsettings", "mixer",
+            "rendertexture", "flare", "cubemap", "spriteatlas", "playable", "signal", "preset",
+            "lighting", "terrainlayer", "brush", "giparams", "shadervariants"));
+
+    private static final int GUID_LENGTH = 32;
+    private static final byte[] GUID_KEY = "guid:".getBytes(StandardCharsets.US_ASCII);
+    /** Spaces allowed between "guid:" and the GUID. */
+    private static final int MAX_SPACES = 4;
+    private static final int MAX_MATCH_LENGTH = GUID_KEY.length + MAX_SPACES + GUID_LENGTH + 1;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final UnityPackage unityPackage;
+    private final int scannedAssetCount;
+    /** GUIDs referenced but not in the package. Their node numbers come after the package assets. */
+    private final String[] externalGuids;
+    /** References from node i are dependencies[dependencyStart[i] .. dependencyStart[i + 1]). */
+    private final int[] dependencyStart;
+    private final int[] dependencies;
+    /** The same, backwards. */
+    private final int[] dependentStart;
+    private final int[] dependents;
+    private final Map<String, Integer> nodeByGuid;
+
+    /**
+     * @param references Each one is the node referencing in the high 32 bits and the node referenced in the low 32 bits,
+     *                   sorted without duplicates.
+     */
+    private DependencyGraph(UnityPackage unityPackage, int scannedAssetCount, String[] externalGuids, long[] references) {
+        this.unityPackage = unityPackage;
+        this.scannedAssetCount = scannedAssetCount;
+        this.externalGuids = externalGuids;
+
+        List<UnityAsset> assets = unityPackage.getUnityAssetList();
+        int nodeCount = assets.size() + externalGuids.length;
+
+        dependencyStart = new int[nodeCount + 1];
+        dependentStart = new int[nodeCount + 1];
+        for (long reference : references) {
+            dependencyStart[(int) (reference >>> 32) + 1]++;
+            dependentStart[(int) reference + 1]++;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            dependencyStart[i + 1] += dependencyStart[i];
+            dependentStart[i + 1] += dependentStart[i];
+        }
+        dependencies = new int[references.length];
+        dependents = new int[references.length];
+        int[] nextDependent = Arrays.copyOf(dependentStart, nodeCount);
+        for (int r = 0; r < references.length; r++) {
+            // Already sorted by the node referencing
+            dependencies[r] = (int) references[r];
+            int to = (int) references[r];
+            dependents[nextDependent[to]++] = (int) (references[r] >>> 32);
+        }
+
+        nodeByGuid = new HashMap<>(nodeCount * 4 / 3 + 1);
+        for (int i = 0; i < assets.size(); i++) {
+            String guid = assets.get(i).getGuid();
+            if (guid != null) {
+                nodeByGuid.putIfAbsent(guid.toLowerCase(Locale.ROOT), i);
+            }
+        }
+        for (int i = 0; i < externalGuids.length; i++) {
+            nodeByGuid.put(externalGuids[i], assets.size() + i);
+        }
+    }
+
+    /**
+     * If the asset is a YAML file that can reference other assets.
+     */
+    public static boolean isYamlAsset(UnityAsset asset) {
+        if (asset.isProbablyDirectory()) {
+            return false;
+        }
+        String name = asset.getFileName();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && YAML_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    public UnityPackage getUnityPackage() {
+        return unityPackage;
+    }
+
+    /**
+     * How many files (assets and .meta files) were read for references.
+     */
+    public int getScannedAssetCount() {
+        return scannedAssetCount;
+    }
+
+    public int getReferenceCount() {
+        return dependencies.length;
+    }
+
+    /**
+     * The asset in the package with the GUID, or null if it's not in the package.
+     */
+    public UnityAsset getAsset(String guid) {
+        Integer node = nodeByGuid.get(guid.toLowerCase(Locale.ROOT));
+        if (node == null || node >= unityPackage.getUnityAssetList().size()) {
+            return null;
+        }
+        return unityPackage.getUnityAssetList().get(node);
+    }
+
+    /**
+     * GUIDs the asset references directly (what it pulls in).
+     */
+    public List<String> getDependencies(String guid) {
+        return toGuids(neighbors(guid, dependencyStart, dependencies, false));
+    }
+
+    /**
+     * GUIDs of the assets that reference the asset directly (what depends on it).
+     */
+    public List<String> getDependents(String guid) {
+        return toGuids(neighbors(guid, dependentStart, dependents, false));
+    }
+
+    /**
+     * Everything the asset pulls in, directly or through other assets.
+     */
+    public List<String> getAllDependencies(String guid) {
+        return toGuids(neighbors(guid, dependencyStart, dependencies, true));
+    }
+
+    /**
+     * Everything that depends on the asset, directly or through other assets.
+     */
+    public List<String> getAllDependents(String guid) {
+        return toGuids(neighbors(guid, dependentStart, dependents, true));
+    }
+
+    /**
+     * @return Node numbers, in package order then external GUIDs.
+     */
+    private int[] neighbors(String guid, int[] start, int[] edges, boolean transitive) {
+        Integer node = nodeByGuid.get(guid.toLowerCase(Locale.ROOT));
+        if (node == null) {
+            return new int[0];
+        }
+        if (!transitive) {
+            return Arrays.copyOfRange(edges, start[node], start[node + 1]);
+        }
+
+        boolean[] seen = new boolean[start.length - 1];
+        seen[node] = true;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(node);
+        int[] found = new int[16];
+        int count = 0;
+        while (!queue.isEmpty()) {
+            int current = queue.poll();
+            for (int e = start[current]; e < start[current + 1]; e++) {
+                int next = edges[e];
+                if (!seen[next]) {
+                    seen[next] = true;
+                    queue.add(next);
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = next;
+                }
+            }
+        }
+        found = Arrays.copyOf(found, count);
+        Arrays.sort(found);
+        return found;
+    }
+
+    private List<String> toGuids(int[] nodes) {
+        if (nodes.length == 0) {
+            return Collections.emptyList();
+        }
+        List<UnityAsset> assets = unityPackage.getUnityAssetList();
+        List<String> guids = new ArrayList<>(nodes.length);
+        for (int node : nodes) {
+            guids.add(node < assets.size() ? assets.get(node).getGuid() : externalGuids[node - assets.size()]);
+        }
+        return guids;
+    }
+
+    // ===================================================================================
+
+    /**
+     * Collects the references of assets and .meta files as they're read.
+     */
+    public static class Builder {
+
+        private final UnityPackage unityPackage;
+        private final Map<String, Integer> nodeByGuid = new HashMap<>();
+        private final List<String> externalGuids = new ArrayList<>();
+        private long[] references = new long[1024];
+        private int referenceCount;
+        private int scannedAssetCount;
+        private final byte[] buffer = new byte[CHUNK_SIZE + MAX_MATCH_LENGTH];
+
+        public Builder(UnityPackage unityPackage) {
+            this.unityPackage = unityPackage;
+            List<UnityAsset> assets = unityPackage.getUnityAssetList();
+            for (int i = 0; i < assets.size(); i++) {
+                String guid = assets.get(i).getGuid();
+                if (guid != null) {
+                    nodeByGuid.putIfAbsent(guid.toLowerCase(Locale.ROOT), i);
+                }
+            }
+        }
+
+        /**
+         * Adds the references found in the contents of the asset, or of its .meta file.
+         * Files that look binary are skipped. The stream is read but not closed.
+         */
+        public void add(UnityAsset asset, InputStream contents) throws IOException {
+            int from = asset.getIndex();
+            int length = 0;
+            // 1 after the first chunk, past the byte kept from before the left over part
+            int scanStart = 0;
+            boolean first = true;
+            boolean end = false;
+            while (!end) {
+                int read = contents.read(buffer, length, buffer.length - length);
+                if (read < 0) {
+                    end = true;
+                } else {
+                    length += read;
+                    if (length < buffer.length) {
+                        continue;
+                    }
+                }
+
+                if (first) {
+                    first = false;
+                    for (int i = 0; i < length; i++) {
+                        if (buffer[i] == 0) {
+                            return;
+                        }
+                    }
+                }
+
+                // A reference starting near the end could continue in the next chunk
+                int scanEnd = end ? length : length - MAX_MATCH_LENGTH;
+                for (int i = indexOfKey(buffer, scanStart, scanEnd, length); i >= 0; i = indexOfKey(buffer, i + 1, scanEnd, length)) {
+                    int guidStart = i + GUID_KEY.length;
+                    for (int s = 0; s < MAX_SPACES && guidStart < length && buffer[guidStart] == ' '; s++) {
+                        guidStart++;
+                    }
+                    if (isGuidAt(buffer, guidStart, length)) {
+                        addReference(from, new String(buffer, guidStart, GUID_LENGTH, StandardCharsets.US_ASCII).toLowerCase(Locale.ROOT));
+                    }
+                }
+
+                if (!end) {
+                    // With the byte before it, so a key at the start can't be the end of a longer one
+                    System.arraycopy(buffer, scanEnd - 1, buffer, 0, length - scanEnd + 1);
+                    length -= scanEnd - 1;
+                    scanStart = 1;
+                }
+            }
+            scannedAssetCount++;
+        }
+
+        /**
+         * Where the next "guid:" that isn't the end of a longer key is, starting before the end.
+         * @param length How much of the bytes were read, the rest is left over from before.
+         */
+        private static int indexOfKey(byte[] bytes, int from, int end, int length) {
+            outer:
+            for (int i = Math.max(from, 0); i < end && i + GUID_KEY.length <= length; i++) {
+                for (int k = 0; k < GUID_KEY.length; k++) {
+                    if (bytes[i + k] != GUID_KEY[k]) {
+                        continue outer;
+                    }
+                }
+                if (i > 0 && isWordByte(bytes[i - 1])) {
+                    continue;
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        private static boolean isWordByte(byte b) {
+            return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+        }
+
+        private static boolean isGuidAt(byte[] bytes, int start, int length) {
+            if (start + GUID_LENGTH > length) {
+                return false;
+            }
+            for (int i = start; i < start + GUID_LENGTH; i++) {
+                if (Character.digit(bytes[i], 16) < 0) {
+                    return false;
+                }
+            }
+            // Not the start of something longer
+            return start + GUID_LENGTH == length || !isWordByte(bytes[start + GUID_LENGTH]);
+        }
+
+        private void addReference(int from, String guid) {
+            Integer to = nodeByGuid.get(guid);
+            if (to == null) {
+                to = unityPackage.getUnityAssetList().size() + externalGuids.size();
+                externalGuids.add(guid);
+                nodeByGuid.put(guid, to);
+            }
+            if (to == from) {
+                // Like the GUID of a .meta file's own asset
+                return;
+            }
+            if (referenceCount == references.length) {
+                references = Arrays.copyOf(references, referenceCount * 2);
+            }
+            references[referenceCount++] = ((long) from << 32) | to;
+        }
+
+        public DependencyGraph build() {
+            return new DependencyGraph(unityPackage, scannedAssetCount,
+                                       externalGuids.toArray(new String[0]), sortedUnique(references, referenceCount));
+        }
+    }
+
+    private static long[] sortedUnique(long[] values, int count) {
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        int unique = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[unique++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, unique);
+    }
+
+    // ===================================================================================
+
+    /**
+     * Saves the graph for {@link UnityPackageIndexCache}.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(scannedAssetCount);
+        out.writeInt(externalGuids.length);
+        for (String guid : externalGuids) {
+            out.writeUTF(guid);
+        }
+        out.writeInt(dependencies.length);
+        for (int from = 0; from < dependencyStart.length - 1; from++) {
+            int previous = 0;
+            for (int e = dependencyStart[from]; e < dependencyStart[from + 1]; e++) {
+                // Node referencing, then small gaps between the nodes referenced, which compress better
+                out.writeInt(from);
+                out.writeInt(dependencies[e] - previous);
+                previous = dependencies[e];
+            }
+        }
+    }
+
+    static DependencyGraph read(DataInputStream in, UnityPackage unityPackage) throws IOException {
+        int scannedAssetCount = in.readInt();
+        String[] externalGuids = new String[in.readInt()];
+        for (int i = 0; i < externalGuids.length; i++) {
+            externalGuids[i] = in.readUTF();
+        }
+        long[] references = new long[in.readInt()];
+        int previousFrom = -1;
+        int previous = 0;
+        for (int r = 0; r < references.length; r++) {
+            int from = in.readInt();
+            if (from != previousFrom) {
+                previousFrom = from;
+                previous = 0;
+            }
+            previous += in.readInt();
+            references[r] = ((long) from << 32) | previous;
+        }
+        return new DependencyGraph(unityPackage, scannedAssetCount, externalGuids, references);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.model;
+
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Finds file assets with identical contents, in one package or across many,
+ * using their {@link ContentHashes}.
+ * <p>
+ * The first copy of each file (in the order of the packages, then of the assets) is the one kept.
+ * Extracting writes only the first copies, then hardlinks the others to them,
+ * or copies them where the file system can't link.
+ */
+public class DuplicateIndex {
+
+    /**
+     * How a file was extracted.
+     */
+    public enum Method {
+        /** Written from the .unitypackage. */
+        WRITTEN,
+        /** Hardlinked to the first copy. */
+        HARDLINK,
+        /** Copied from the first copy, because it couldn't be linked. */
+        COPY,
+    }
+
+    public interface Listener {
+        void extracted(UnityAsset asset, Path file, Method method);
+    }
+
+    /**
+     * File assets with the same contents.
+     */
+    public static class Group {
+        private final String hash;
+        private final List<UnityAsset> copies = new ArrayList<>(2);
+
+        private Group(String hash) {
+            this.hash = hash;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public long getSize() {
+            return copies.get(0).getSize();
+        }
+
+        /**
+         * The first is the one that's kept.
+         */
+        public List<UnityAsset> getCopies() {
+            return copies;
+        }
+
+        /**
+         * Space taken by all but the first copy.
+         */
+        public long getWastedBytes() {
+            return getSize() * (copies.size() - 1);
+        }
+    }
+
+    /** Every file asset to its group, including the ones without duplicates. */
+    private final Map<UnityAsset, Group> groupOfAsset = new HashMap<>();
+    private final List<Group> duplicates = new ArrayList<>();
+
+    /**
+     * @param packageHashes In the order the packages take priority.
+     */
+    public DuplicateIndex(List<ContentHashes> packageHashes) {
+        Map<String, Group> groups = new HashMap<>();
+        for (ContentHashes hashes : packageHashes) {
+            for (UnityAsset asset : hashes.getUnityPackage().getUnityAssetList()) {
+                String hash = hashes.getHashString(asset);
+                if (hash == null) {
+                    continue;
+                }
+                Group group = groups.computeIfAbsent(hash, Group::new);
+                group.copies.add(asset);
+                groupOfAsset.put(asset, group);
+                if (group.copies.size() == 2) {
+                    duplicates.add(group);
+                }
+            }
+        }
+        duplicates.sort((a, b) -> Long.compare(b.getWastedBytes(), a.getWastedBytes()));
+    }
+
+    /**
+     * Groups of more than one copy, most wasted space first.
+     */
+    public List<Group> getDuplicates() {
+        return Collections.unmodifiableList(duplicates);
+    }
+
+    public long getWastedBytes() {
+        long wasted = 0;
+        for (Group group : duplicates) {
+            wasted += group.getWastedBytes();
+        }
+        return wasted;
+    }
+
+    /**
+     * The copy that's kept of the asset's contents, which is the asset itself if it's the first or only copy.
+     */
+    public UnityAsset getFirstCopy(UnityAsset asset) {
+        Group group = groupOfAsset.get(asset);
+        return group == null ? asset : group.copies.get(0);
+    }
+
+    /**
+     * Extracts the assets of the package that are first copies, under their full Unity paths in the directory.
+     * Do this for every package before {@link #linkCopies}.
+     */
+    public void extractFirstCopies(UnityPackage unityPackage, Path outputDirectory, ParallelExtractor extractor,
+                                   Listener listener) throws IOException
+    {
+        List<UnityAsset> firstCopies = new ArrayList<>();
+        for (UnityAsset asset : unityPackage.getUnityAssetList()) {
+            if (!asset.isProbablyDirectory() && getFirstCopy(asset).equals(asset)) {
+                firstCopies.add(asset);
+            }
+        }
+        if (firstCopies.isEmpty()) {
+            return;
+        }
+        try (UnityArchiveInputStream unityIS = unityPackage.getUnityArchiveInputStream(firstCopies)) {
+            extractor.extract(unityIS, outputDirectory, (asset, file) -> listener.extracted(asset, file, Method.WRITTEN));
+        }
+    }
+
+    /**
+     * Links the other assets of the package to the first copies already extracted.
+     *
+     * @param outputDirectories Where each package was extracted.
+     */
+    public void linkCopies(UnityPackage unityPackage, Function<UnityPackage, Path> outputDirectories,
+                           Listener listener) throws IOException
+    {
+        Path normalizedOutput = outputDirectories.apply(unityPackage).toAbsolutePath().normalize();
+        for (UnityAsset asset : unityPackage.getUnityAssetList()) {
+            if (asset.isProbablyDirectory()) {
+                continue;
+            }
+            UnityAsset firstCopy = getFirstCopy(asset);
+            if (firstCopy.equals(asset)) {
+                continue;
+            }
+
+            Path firstCopyOutput = outputDirectories.apply(firstCopy.getUnityPackage()).toAbsolutePath().normalize();
+            Path existing = UnityPackage.resolveOutputPath(firstCopyOutput, firstCopy);
+            Path file = UnityPackage.resolveOutputPath(normalizedOutput, asset);
+            if (file.equals(existing)) {
+                // Two assets of the package with the same path
+                continue;
+            }
+            Files.createDirectories(file.getParent());
+            Files.deleteIfExists(file);
+
+            Method method;
+            try {
+                Files.createLink(file, existing);
+                method = Method.HARDLINK;
+            } catch (UnsupportedOperationException | FileSystemException ex) {
+                // Like on FAT, or when the directories are on different drives
+                Files.copy(existing, file, StandardCopyOption.REPLACE_EXISTING);
+                method = Method.COPY;
+            }
+            listener.extracted(asset, file, method);
+        }
+    }
+}
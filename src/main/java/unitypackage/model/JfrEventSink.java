@@ -0,0 +1,60 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.model;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Records {@link Metrics.Span}s as JFR events.
+ * Only loaded by {@link Metrics} when jdk.jfr is available.
+ */
+class JfrEventSink implements Metrics.EventSink {
+
+    @Name("unitypackage.Phase")
+    @Label("Unity Package Phase")
+    @Category("Unity Package Viewer")
+    @Description("A phase of reading a .unitypackage")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Detail")
+        String detail;
+    }
+
+    @Override
+    public Object begin(Metrics.Phase phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.phase = phase.getLabel();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commit(Object event, String detail) {
+        PhaseEvent phaseEvent = (PhaseEvent) event;
+        phaseEvent.detail = detail;
+        phaseEvent.commit();
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.model;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timers for the phases of reading a .unitypackage, for all packages since the start
+ * (or the last {@link #reset()}). Take a {@link #snapshot()} before and after something
+ * to see where the time went.
+ * <p>
+ * The bigger phases (a {@link Span}) are also recorded as JFR events named "unitypackage.Phase"
+ * when running on a Java with Flight Recorder. The small frequent ones only count time.
+ * <p>
+ * Phases can overlap. For example indexing includes inflating, and inflating happens
+ * on another thread at the same time as the tar headers are read.
+ */
+public final class Metrics {
+
+    public enum Phase {
+        /** Reading the whole package to index it. */
+        INDEXING("Indexing"),
+        /** Loading the index from the cache instead. */
+        CACHE_LOAD("Index cache load"),
+        /** Time spent reading decompressed data (including waiting for it). */
+        INFLATE("Gzip inflate"),
+        TAR_HEADERS("Tar headers"),
+        META_SCAN("asset.meta GUID scan"),
+        PREVIEW_DECODE("Preview decode"),
+        TREE_BUILD("Tree build");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * Records the JFR events, if JFR is available.
+     */
+    interface EventSink {
+        Object begin(Phase phase);
+        void commit(Object event, String detail);
+    }
+
+    private static final int PHASE_COUNT = Phase.values().length;
+    private static final LongAdder[] PHASE_NANOS = newAdders(PHASE_COUNT);
+    private static final LongAdder[] PHASE_COUNTS = newAdders(PHASE_COUNT);
+    private static final LongAdder BYTES_INFLATED = new LongAdder();
+    private static final LongAdder TAR_ENTRIES = new LongAdder();
+
+    private static final EventSink EVENT_SINK = loadEventSink();
+
+    private Metrics() {
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Java 8 may not have jdk.jfr, so the class using it is only loaded if it's there.
+     */
+    private static EventSink loadEventSink() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (EventSink) Class.forName("unitypackage.model.JfrEventSink").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+
+    public static void record(Phase phase, long nanos) {
+        PHASE_NANOS[phase.ordinal()].add(nanos);
+        PHASE_COUNTS[phase.ordinal()].increment();
+    }
+
+    static void addTarEntry() {
+        TAR_ENTRIES.increment();
+    }
+
+    /**
+     * Starts timing a phase, to be closed when it's done.
+     */
+    public static Span start(Phase phase) {
+        return new Span(phase);
+    }
+
+    public static final class Span implements AutoCloseable {
+        private final Phase phase;
+        private final long startNanos = System.nanoTime();
+        private final Object event;
+        private String detail;
+
+        private Span(Phase phase) {
+            this.phase = phase;
+            event = EVENT_SINK == null ? null : EVENT_SINK.begin(phase);
+        }
+
+        /**
+         * Saved with the JFR event, like the name of the package.
+         */
+        public void setDetail(String detail) {
+            this.detail = detail;
+        }
+
+        @Override
+        public void close() {
+            record(phase, System.nanoTime() - startNanos);
+            if (event != null) {
+                EVENT_SINK.commit(event, detail);
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read from a decompressing stream, and the time spent reading them.
+     */
+    static InputStream timeInflate(InputStream inflating) {
+        return new FilterInputStream(inflating) {
+            @Override
+            public int read() throws IOException {
+                long start = System.nanoTime();
+                int b = in.read();
+                record(Phase.INFLATE, System.nanoTime() - start);
+                if (b >= 0) {
+                    BYTES_INFLATED.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                long start = System.nanoTime();
+                int read = in.read(b, off, len);
+                record(Phase.INFLATE, System.nanoTime() - start);
+                if (read > 0) {
+                    BYTES_INFLATED.add(read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long start = System.nanoTime();
+                long skipped = in.skip(n);
+                record(Phase.INFLATE, System.nanoTime() - start);
+                BYTES_INFLATED.add(skipped);
+                return skipped;
+            }
+        };
+    }
+
+    public static Snapshot snapshot() {
+        long[] nanos = new long[PHASE_COUNT];
+        long[] counts = new long[PHASE_COUNT];
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            nanos[i] = PHASE_NANOS[i].sum();
+            counts[i] = PHASE_COUNTS[i].sum();
+        }
+        return new Snapshot(nanos, counts, BYTES_INFLATED.sum(), TAR_ENTRIES.sum());
+    }
+
+    public static void reset() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            PHASE_NANOS[i].reset();
+            PHASE_COUNTS[i].reset();
+        }
+        BYTES_INFLATED.reset();
+        TAR_ENTRIES.reset();
+    }
+
+    /**
+     * The counters at one moment.
+     */
+    public static final class Snapshot {
+        private final long[] phaseNanos;
+        private final long[] phaseCounts;
+        private final long bytesInflated;
+        private final long tarEntries;
+
+        private Snapshot(long[] phaseNanos, long[] phaseCounts, long bytesInflated, long tarEntries) {
+            this.phaseNanos = phaseNanos;
+            this.phaseCounts = phaseCounts;
+            this.bytesInflated = bytesInflated;
+            this.tarEntries = tarEntries;
+        }
+
+        /**
+         * What happened between an earlier snapshot and this one.
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] nanos = new long[PHASE_COUNT];
+            long[] counts = new long[PHASE_COUNT];
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                nanos[i] = phaseNanos[i] - earlier.phaseNanos[i];
+                counts[i] = phaseCounts[i] - earlier.phaseCounts[i];
+            }
+            return new Snapshot(nanos, counts, bytesInflated - earlier.bytesInflated, tarEntries - earlier.tarEntries);
+        }
+
+        public long getNanos(Phase phase) {
+            return phaseNanos[phase.ordinal()];
+        }
+
+        public long getCount(Phase phase) {
+            return phaseCounts[phase.ordinal()];
+        }
+
+        public long getBytesInflated() {
+            return bytesInflated;
+        }
+
+        public long getTarEntries() {
+            return tarEntries;
+        }
+
+        /**
+         * Tar entries per second of indexing.
+         */
+        public double getEntriesPerSecond() {
+            long nanos = getNanos(Phase.INDEXING);
+            return nanos == 0 ? 0 : tarEntries * 1e9 / nanos;
+        }
+
+        /**
+         * One line, leaving out the phases that didn't happen.
+         */
+        public String toShortString() {
+            StringBuilder sb = new StringBuilder();
+            if (tarEntries > 0) {
+                sb.append(String.format("%,d entries at %,.0f/s, ", tarEntries, getEntriesPerSecond()));
+            }
+            if (bytesInflated > 0) {
+                sb.append(String.format("%,.1f MB inflated, ", bytesInflated / 1e6));
+            }
+            for (Phase phase : Phase.values()) {
+                if (getCount(phase) > 0) {
+                    sb.append(String.format("%s %,d ms, ", phase.getLabel(), getNanos(phase) / 1000000));
+                }
+            }
+            if (sb.length() > 0) {
+                sb.setLength(sb.length() - 2);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * A line for each counter and phase.
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Bytes inflated:       %,d%n", bytesInflated));
+            sb.append(String.format("Tar entries:          %,d (%,.0f entries/s while indexing)%n", tarEntries, getEntriesPerSecond()));
+            for (Phase phase : Phase.values()) {
+                sb.append(String.format("%-21s %,10.1f ms  (%,d times)%n",
+                                        phase.getLabel() + ":", getNanos(phase) / 1e6, getCount(phase)));
+            }
+            return sb.toString();
+        }
+    }
+}
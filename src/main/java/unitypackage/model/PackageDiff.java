@@ -0,0 +1,215 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * What changed between two versions of a package: assets added, removed,
+ * moved (same GUID at a new path) or with different contents.
+ * <p>
+ * Assets are matched by GUID, and contents are compared with {@link ContentHashes},
+ * so nothing has to be extracted.
+ */
+public class PackageDiff {
+
+    public enum Change {
+        ADDED,
+        REMOVED,
+        MOVED,
+        CHANGED,
+        MOVED_AND_CHANGED,
+    }
+
+    public static class Entry {
+        private final Change change;
+        private final UnityAsset oldAsset;
+        private final UnityAsset newAsset;
+
+        private Entry(Change change, UnityAsset oldAsset, UnityAsset newAsset) {
+            this.change = change;
+            this.oldAsset = oldAsset;
+            this.newAsset = newAsset;
+        }
+
+        public Change getChange() {
+            return change;
+        }
+
+        /**
+         * Null if it was added.
+         */
+        public UnityAsset getOldAsset() {
+            return oldAsset;
+        }
+
+        /**
+         * Null if it was removed.
+         */
+        public UnityAsset getNewAsset() {
+            return newAsset;
+        }
+
+        public String getGuid() {
+            return guidOf(newAsset != null ? newAsset : oldAsset);
+        }
+
+        /**
+         * The new path, or the old one if it was removed.
+         */
+        public String getPath() {
+            return (newAsset != null ? newAsset : oldAsset).getFullPath();
+        }
+    }
+
+    private final UnityPackage oldPackage;
+    private final UnityPackage newPackage;
+    private final List<Entry> entries;
+    private final int unchangedCount;
+
+    private PackageDiff(UnityPackage oldPackage, UnityPackage newPackage, List<Entry> entries, int unchangedCount) {
+        this.oldPackage = oldPackage;
+        this.newPackage = newPackage;
+        this.entries = entries;
+        this.unchangedCount = unchangedCount;
+    }
+
+    /**
+     * Opens both packages at the same time, each on its own thread.
+     * Packages not in the cache are hashed while they're indexed, so each one is only read once.
+     */
+    public static PackageDiff compare(File oldFile, File newFile, UnityPackageIndexCache indexCache) throws IOException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ContentHashes> newHashes = executor.submit(() -> openHashed(newFile, indexCache));
+            ContentHashes oldHashes = openHashed(oldFile, indexCache);
+            return compare(oldHashes, newHashes.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            } else if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ContentHashes openHashed(File unitypackageFile, UnityPackageIndexCache indexCache) throws IOException {
+        return indexCache.openContentHashes(indexCache.open(unitypackageFile, true));
+    }
+
+    public static PackageDiff compare(ContentHashes oldHashes, ContentHashes newHashes) {
+        UnityPackage oldPackage = oldHashes.getUnityPackage();
+        UnityPackage newPackage = newHashes.getUnityPackage();
+
+        Map<String, UnityAsset> oldAssets = new HashMap<>();
+        for (UnityAsset asset : oldPackage.getUnityAssetList()) {
+            oldAssets.put(guidOf(asset), asset);
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        int unchangedCount = 0;
+        for (UnityAsset newAsset : newPackage.getUnityAssetList()) {
+            UnityAsset oldAsset = oldAssets.remove(guidOf(newAsset));
+            if (oldAsset == null) {
+                entries.add(new Entry(Change.ADDED, null, newAsset));
+                continue;
+            }
+
+            boolean moved = !oldAsset.getFullPath().equals(newAsset.getFullPath());
+            boolean changed = oldAsset.isProbablyDirectory() != newAsset.isProbablyDirectory() ||
+                              oldAsset.getSize() != newAsset.getSize() ||
+                              !Arrays.equals(oldHashes.getHash(oldAsset), newHashes.getHash(newAsset));
+            if (moved && changed) {
+                entries.add(new Entry(Change.MOVED_AND_CHANGED, oldAsset, newAsset));
+            } else if (moved) {
+                entries.add(new Entry(Change.MOVED, oldAsset, newAsset));
+            } else if (changed) {
+                entries.add(new Entry(Change.CHANGED, oldAsset, newAsset));
+            } else {
+                unchangedCount++;
+            }
+        }
+        for (UnityAsset oldAsset : oldAssets.values()) {
+            entries.add(new Entry(Change.REMOVED, oldAsset, null));
+        }
+
+        entries.sort(Comparator.comparing((Entry entry) -> entry.getPath().toLowerCase(Locale.ROOT)));
+        return new PackageDiff(oldPackage, newPackage, Collections.unmodifiableList(entries), unchangedCount);
+    }
+
+    /**
+     * Assets missing their asset.meta are matched by their directory in the .unitypackage, which is usually the GUID.
+     */
+    private static String guidOf(UnityAsset asset) {
+        String guid = asset.getGuid();
+        return (guid != null ? guid : asset.getDirectoryGuid()).toLowerCase(Locale.ROOT);
+    }
+
+    public UnityPackage getOldPackage() {
+        return oldPackage;
+    }
+
+    public UnityPackage getNewPackage() {
+        return newPackage;
+    }
+
+    /**
+     * Everything that's different, by path.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public int getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    /**
+     * How many entries have the change.
+     */
+    public int count(Change change) {
+        int count = 0;
+        for (Entry entry : entries) {
+            if (entry.getChange() == change) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package unitypackage.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Extracts assets with one thread decompressing and reading the archive,
+ * while a pool of threads creates the directories and writes the files.
+ * That way slow file system calls don't hold up decompression.
+ * <p>
+ * Assets are held in memory until they're written, up to a limit.
+ * Assets too big to hold in memory are written by the reading thread itself.
+ * <p>
+ * When several assets have the same path, each waits for the previous one
+ * to be written, so the last one in the archive ends up in the file.
+ */
+public class ParallelExtractor {
+
+    /**
+     * Assets bigger than this are written directly by the reading thread.
+     */
+    private static final int MAX_BUFFERED_ASSET_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Semaphore permits are in KiB so large budgets still fit in an int.
+     */
+    private static final int PERMIT_SIZE = 1024;
+
+    public interface Listener {
+        /**
+         * Called from the thread that wrote the file.
+         */
+        void extracted(UnityAsset asset, Path file);
+    }
+
+    private final int writerThreads;
+    private final long maxBufferedBytes;
+
+    /**
+     * @param writerThreads Number of threads writing files.
+     * @param maxBufferedBytes Most asset data to hold in memory waiting to be written.
+     */
+    public ParallelExtractor(int writerThreads, long maxBufferedBytes) {
+        if (writerThreads < 1) {
+            throw new IllegalArgumentException("Need at least 1 writer thread " + writerThreads);
+        }
+        this.writerThreads = writerThreads;
+        this.maxBufferedBytes = Math.max(maxBufferedBytes, MAX_BUFFERED_ASSET_SIZE);
+    }
+
+    /**
+     * Extracts every asset in the stream under its full Unity path in the output directory.
+     */
+    public void extract(UnityArchiveInputStream source, Path outputDirectory, Listener listener) throws IOException {
+        Path normalizedOutput = outputDirectory.toAbsolutePath().normalize();
+
+        Semaphore bufferBudget = new Semaphore(toPermits(maxBufferedBytes));
+        AtomicReference<IOException> writeError = new AtomicReference<>();
+        Set<Path> createdDirectories = ConcurrentHashMap.newKeySet();
+        ConcurrentHashMap<Path, CountDownLatch> pendingWrites = new ConcurrentHashMap<>();
+        ChannelFileWriter readerFileWriter = new ChannelFileWriter();
+        ThreadLocal<ChannelFileWriter> fileWriters = ThreadLocal.withInitial(ChannelFileWriter::new);
+
+        ExecutorService writers = Executors.newFixedThreadPool(writerThreads);
+        try {
+            UnityAsset asset;
+            while ((asset = source.getNextEntry()) != null) {
+                throwIfFailed(writeError);
+
+                Path assetPath = UnityPackage.resolveOutputPath(normalizedOutput, asset);
+                long size = asset.getSize();
+                awaitPendingWrite(pendingWrites, assetPath);
+
+                if (size > MAX_BUFFERED_ASSET_SIZE) {
+                    createParentDirectories(assetPath, createdDirectories);
+                    readerFileWriter.write(assetPath, source, size);
+                    listener.extracted(asset, assetPath);
+                    continue;
+                }
+
+                int permits = toPermits(size);
+                try {
+                    bufferBudget.acquire(permits);
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+                byte[] contents = readFully(source, (int) size);
+
+                CountDownLatch written = new CountDownLatch(1);
+                pendingWrites.put(assetPath, written);
+                final UnityAsset assetToWrite = asset;
+                writers.execute(() -> {
+                    try {
+                        if (writeError.get() == null) {
+                            createParentDirectories(assetPath, createdDirectories);
+                            fileWriters.get().write(assetPath, contents);
+                            listener.extracted(assetToWrite, assetPath);
+                        }
+                    } catch (IOException ex) {
+                        writeError.compareAndSet(null, ex);
+                    } catch (RuntimeException ex) {
+                        // Including from the listener, or it would be lost in the pool
+                        writeError.compareAndSet(null, new IOException(ex));
+                    } finally {
+                        bufferBudget.release(permits);
+                        pendingWrites.remove(assetPath, written);
+                        written.countDown();
+                    }
+                });
+            }
+        } finally {
+            writers.shutdown();
+            try {
+                writers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                writers.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        throwIfFailed(writeError);
+    }
+
+    private static void throwIfFailed(AtomicReference<IOException> writeError) throws IOException {
+        IOException ex = writeError.get();
+        if (ex != null) {
+            throw new IOException("Error writing extracted file", ex);
+        }
+    }
+
+    /**
+     * Waits until an earlier asset with the same path has been written, if there is one.
+     */
+    private static void awaitPendingWrite(ConcurrentHashMap<Path, CountDownLatch> pendingWrites, Path file)
+            throws InterruptedIOException
+    {
+        CountDownLatch written = pendingWrites.get(file);
+        if (written != null) {
+            try {
+                written.await();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private static void createParentDirectories(Path file, Set<Path> createdDirectories) throws IOException {
+        Path parent = file.getParent();
+        if (!createdDirectories.contains(parent)) {
+            // Another thread may be creating the same directory, but that's ok
+            Files.createDirectories(parent);
+            createdDirectories.add(parent);
+        }
+    }
+
+    private static int toPermits(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, bytes / PERMIT_SIZE + 1);
+    }
+
+    static byte[] readFully(InputStream is, int size) throws IOException {
+        byte[] contents = new byte[size];
+        int pos = 0;
+        while (pos < size) {
+            int read = is.read(contents, pos, size - pos);
+            if (read < 0) {
+                throw new IOException("Unexpected end of asset data");
+            }
+            pos += read;
+        }
+        return contents;
+    }
+}
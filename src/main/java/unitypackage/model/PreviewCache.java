@@ -0,0 +1,69 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package unitypackage.model;
+
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Keeps the most recently used preview images so they don't have to be
+ * decompressed and decoded again.
+ */
+class PreviewCache {
+
+    /**
+     * Stands in for images that couldn't be read, so they aren't tried again.
+     */
+    private static final BufferedImage UNREADABLE = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+
+    private final Map<UnityAsset, BufferedImage> previews;
+
+    public PreviewCache(int maxSize) {
+        previews = new LinkedHashMap<UnityAsset, BufferedImage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UnityAsset, BufferedImage> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param reader Called to read the image if it isn't in the cache. May return null.
+     */
+    public BufferedImage get(UnityAsset asset, Function<UnityAsset, BufferedImage> reader) {
+        BufferedImage image;
+        synchronized (previews) {
+            image = previews.get(asset);
+        }
+
+        if (image == null) {
+            image = reader.apply(asset);
+            if (image == null) {
+                image = UNREADABLE;
+            }
+            synchronized (previews) {
+                previews.put(asset, image);
+            }
+        }
+
+        return image == UNREADABLE ? null : image;
+    }
+}
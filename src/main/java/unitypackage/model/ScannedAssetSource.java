@@ -0,0 +1,108 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.model;
+
+import java.nio.file.Paths;
+import java.util.Date;
+
+/**
+ * The values of one asset straight from its {@link UnityAssetBuilder}, for
+ * {@link UnityPackage#scan(java.io.File, UnityAssetVisitor)}, so each scanned
+ * asset doesn't need a {@link UnityAssetStore} of its own.
+ * The index is always 0.
+ */
+final class ScannedAssetSource extends UnityAssetSource {
+
+    private final UnityAssetBuilder builder;
+
+    ScannedAssetSource(UnityAssetBuilder builder) {
+        this.builder = builder;
+    }
+
+    UnityAsset asUnityAsset() {
+        return new UnityAsset(this, 0, null);
+    }
+
+    @Override
+    String getDirectoryGuid(int index) {
+        return builder.getGuidBaseDirectory();
+    }
+
+    @Override
+    String getMetaGuid(int index) {
+        return builder.getAsset_meta_guid();
+    }
+
+    @Override
+    String getFullPath(int index) {
+        return builder.getPathname_firstLine();
+    }
+
+    @Override
+    String getFileName(int index) {
+        String path = builder.getPathname_firstLine();
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        if (name.isEmpty() || name.indexOf('\\') >= 0) {
+            // Let Path deal with the odd cases, same as UnityAssetStore
+            return Paths.get(path).getFileName().toString();
+        }
+        return name;
+    }
+
+    @Override
+    boolean hasAsset(int index) {
+        return builder.getRawPathTo_asset_file() != null;
+    }
+
+    @Override
+    String getAssetTarPath(int index) {
+        return builder.getRawPathTo_asset_file();
+    }
+
+    @Override
+    long getAssetSize(int index) {
+        return builder.getAsset_fileSize();
+    }
+
+    @Override
+    long getAssetTarHeaderOffset(int index) {
+        return builder.getAsset_tarHeaderOffset();
+    }
+
+    @Override
+    long getAssetTarDataOffset(int index) {
+        return builder.getAsset_tarDataOffset();
+    }
+
+    @Override
+    Date getDateModified(int index) {
+        return builder.getAsset_dateModified();
+    }
+
+    @Override
+    long getPreviewTarDataOffset(int index) {
+        return builder.getPreview_tarDataOffset();
+    }
+
+    @Override
+    long getPreviewSize(int index) {
+        return builder.getPreview_fileSize();
+    }
+}
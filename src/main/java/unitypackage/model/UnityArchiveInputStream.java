@@ -20,7 +20,7 @@
 
 import java.io.FilterInputStream;
 import java.io.IOException;
-import java.util.List;
+import java.util.Collection;
 import java.util.Map;
 import java.util.TreeMap;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
@@ -39,7 +39,7 @@ public UnityArchiveInputStream(UnityPackage unityPackage) throws IOException {
         this(unityPackage.getTarInputStream(), unityPackage.getUnityAssetList());
     }
 
-    public UnityArchiveInputStream(TarArchiveInputStream tarInputStream, List<UnityAsset> unityAssetsToRead) {
+    public UnityArchiveInputStream(TarArchiveInputStream tarInputStream, Collection<UnityAsset> unityAssetsToRead) {
         super(tarInputStream);
         this.tarInputStream = tarInputStream;
 
@@ -53,15 +53,21 @@ public UnityArchiveInputStream(TarArchiveInputStream tarInputStream, List<UnityA
     /**
      * Like {@link TarArchiveInputStream#getNextEntry()} but for Unity asset files,
      * except it only returns actual files, skipping directories.
+     * Stops as soon as every asset has been found.
      */
     public UnityAsset getNextEntry() throws IOException {
 
+        if (tarPathsToUnityAsset.isEmpty()) {
+            // No need to read the rest of the archive
+            return null;
+        }
+
         TarArchiveEntry entry;
         // Seek for the file of interest
         while ((entry = tarInputStream.getNextEntry()) != null) {
             String tarEntryName = entry.getName();
             // Check if this file in the tar is an asset payload
-            UnityAsset unityAsset = tarPathsToUnityAsset.get(tarEntryName);
+            UnityAsset unityAsset = tarPathsToUnityAsset.remove(tarEntryName);
             if (unityAsset != null) {
                 return unityAsset;
             }
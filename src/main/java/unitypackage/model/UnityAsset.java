@@ -26,17 +26,38 @@
 /**
  * An asset as it would appear in the tree of stuff you see when you import a .unitypackage into Unity.
  * This could be a directory or a file.
+ * <p>
+ * This is only a view of one asset in a {@link UnityAssetStore} (or other {@link UnityAssetSource}),
+ * so two instances for the same asset are equal.
  */
 public class UnityAsset {
 
-    private final UnityAssetBuilder source;
+    private final UnityAssetSource store;
+    private final int index;
+    private final UnityPackage unityPackage;
 
-    UnityAsset(UnityAssetBuilder source) {
-        this.source = source;
+    UnityAsset(UnityAssetSource store, int index, UnityPackage unityPackage) {
+        this.store = store;
+        this.index = index;
+        this.unityPackage = unityPackage;
+    }
+
+    /**
+     * Position in {@link UnityPackage#getUnityAssetList()}.
+     */
+    int getIndex() {
+        return index;
+    }
+
+    /**
+     * The package the asset is in. Null for assets from {@link UnityPackage#scan(java.io.File, UnityAssetVisitor)}.
+     */
+    public UnityPackage getUnityPackage() {
+        return unityPackage;
     }
 
     public String getFullPath() {
-        return source.getPathname_firstLine();
+        return store.getFullPath(index);
     }
 
     public Path getFullPathAsPath() {
@@ -44,33 +65,41 @@ public Path getFullPathAsPath() {
     }
 
     public Path getFileNameAsPath() {
-        return getFullPathAsPath().getFileName();
+        return Paths.get(getFileName());
     }
 
     public String getFileName() {
-        return getFileNameAsPath().toString();
+        return store.getFileName(index);
     }
 
     /**
      * Returns -1 if the asset is not a file.
      */
     public long getSize() {
-        return source.getAsset_fileSize();
+        return store.getAssetSize(index);
     }
 
     public String getGuid() {
-        return source.getAsset_meta_guid();
+        return store.getMetaGuid(index);
     }
 
     public String getDirectoryGuid() {
-        return source.getGuidBaseDirectory();
+        return store.getDirectoryGuid(index);
+    }
+
+    public boolean hasPreview() {
+        return store.getPreviewTarDataOffset(index) >= 0;
     }
 
     /**
-     * May be null.
+     * Reads the preview image from the .unitypackage the first time it's needed.
+     * May be null, and is always null for assets from {@link UnityPackage#scan(java.io.File, UnityAssetVisitor)}.
      */
     public BufferedImage getPreview() {
-        return source.getPreview();
+        if (!hasPreview() || unityPackage == null) {
+            return null;
+        }
+        return unityPackage.getPreview(this);
     }
 
     /**
@@ -78,15 +107,45 @@ public BufferedImage getPreview() {
      * which probably means it represents a directory (in practice this seems to be the case).
      */
     public boolean isProbablyDirectory() {
-        return source.getRawPathTo_asset_file() == null;
+        return !store.hasAsset(index);
     }
 
     String getTarPathOf_asset_File() {
-        return source.getRawPathTo_asset_file();
+        return store.getAssetTarPath(index);
+    }
+
+    long getTarHeaderOffset() {
+        return store.getAssetTarHeaderOffset(index);
+    }
+
+    long getTarDataOffset() {
+        return store.getAssetTarDataOffset(index);
+    }
+
+    long getPreviewTarDataOffset() {
+        return store.getPreviewTarDataOffset(index);
+    }
+
+    long getPreviewSize() {
+        return store.getPreviewSize(index);
     }
 
     public Date getDateModified() {
-        return source.getAsset_dateModified();
+        return store.getDateModified(index);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof UnityAsset)) {
+            return false;
+        }
+        UnityAsset other = (UnityAsset) o;
+        return store == other.store && index == other.index;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(store) * 31 + index;
     }
 
     @Override
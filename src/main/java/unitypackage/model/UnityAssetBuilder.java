@@ -18,7 +18,6 @@
 
 package unitypackage.model;
 
-import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -27,7 +26,6 @@
 import java.util.Date;
 import java.util.List;
 import java.util.stream.Collectors;
-import javax.imageio.ImageIO;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 
@@ -86,6 +84,26 @@ public long getAsset_fileSize() {
         return asset_fileSize;
     }
 
+    /**
+     * Offset of the tar header of the "asset" file in the decompressed tar.
+     * Will remain -1 if there is no "asset" file.
+     */
+    private long asset_tarHeaderOffset = -1;
+
+    public long getAsset_tarHeaderOffset() {
+        return asset_tarHeaderOffset;
+    }
+
+    /**
+     * Offset of the "asset" file contents in the decompressed tar.
+     * Will remain -1 if there is no "asset" file.
+     */
+    private long asset_tarDataOffset = -1;
+
+    public long getAsset_tarDataOffset() {
+        return asset_tarDataOffset;
+    }
+
     private Date asset_dateModified;
 
     public Date getAsset_dateModified() {
@@ -93,13 +111,20 @@ public Date getAsset_dateModified() {
     }
 
     /**
-     * The image in the "preview.png" file in this directory.
-     * May be null.
+     * Offset of the "preview.png" file contents in the decompressed tar.
+     * The image itself is only read when it's needed.
+     * Will remain -1 if there is no "preview.png" file.
      */
-    private BufferedImage _preview;
+    private long preview_tarDataOffset = -1;
+
+    public long getPreview_tarDataOffset() {
+        return preview_tarDataOffset;
+    }
 
-    public BufferedImage getPreview() {
-        return _preview;
+    private long preview_fileSize = -1;
+
+    public long getPreview_fileSize() {
+        return preview_fileSize;
     }
 
     public UnityAssetBuilder(String directoryGuidName) {
@@ -107,15 +132,12 @@ public UnityAssetBuilder(String directoryGuidName) {
     }
 
     public UnityAssetBuilder(String guidBaseDirectory, String fileName, TarArchiveEntry tarEntry,
-                             TarArchiveInputStream tarInputStream) throws IOException
+                             TarArchiveInputStream tarInputStream, long tarHeaderOffset, long tarDataOffset)
+            throws IOException
     {
         this.guidBaseDirectory = guidBaseDirectory;
 
-        addFileFoundInDirectory(this.guidBaseDirectory, fileName, tarEntry, tarInputStream);
-    }
-
-    public UnityAsset makeUnityAsset() {
-        return new UnityAsset(this);
+        addFileFoundInDirectory(this.guidBaseDirectory, fileName, tarEntry, tarInputStream, tarHeaderOffset, tarDataOffset);
     }
 
     /**
@@ -128,8 +150,13 @@ public void assertGuidMatchesDirectoryName(String directoryGuidName) {
         }
     }
 
+    /**
+     * @param tarHeaderOffset Where the header of the tar entry starts in the decompressed tar.
+     * @param tarDataOffset Where the contents of the tar entry start in the decompressed tar.
+     */
     final public void addFileFoundInDirectory(String directoryGuidName, String fileName, TarArchiveEntry tarEntry,
-                                              TarArchiveInputStream tarInputStream) throws IOException {
+                                              TarArchiveInputStream tarInputStream, long tarHeaderOffset,
+                                              long tarDataOffset) throws IOException {
 
         assertGuidMatchesDirectoryName(directoryGuidName);
 
@@ -137,10 +164,14 @@ final public void addFileFoundInDirectory(String directoryGuidName, String fileN
             case "asset":
                 asset_fileSize = tarEntry.getRealSize();
                 rawPathTo_asset_file = tarEntry.getName();
+                asset_tarHeaderOffset = tarHeaderOffset;
+                asset_tarDataOffset = tarDataOffset;
                 asset_dateModified = tarEntry.getLastModifiedDate();
                 break;
             case "asset.meta":
+                long start = System.nanoTime();
                 asset_meta_guid = findGuidIn_asset_meta_File(tarEntry, tarInputStream);
+                Metrics.record(Metrics.Phase.META_SCAN, System.nanoTime() - start);
                 if (!asset_meta_guid.equals(guidBaseDirectory)) {
                     // Usually the directory guid matches the guid in the asset.meta file, but not always it seems
                     String s = "[WARN] Corrupted .unitypackage? directory guid " + guidBaseDirectory + " != asset.meta guid " + asset_meta_guid;
@@ -155,7 +186,8 @@ final public void addFileFoundInDirectory(String directoryGuidName, String fileN
                 pathname_firstLine = readFirstLine(tarEntry, tarInputStream);
                 break;
             case "preview.png":
-                _preview = ImageIO.read(tarInputStream);
+                preview_tarDataOffset = tarDataOffset;
+                preview_fileSize = tarEntry.getRealSize();
                 break;
             case "metaData":
                 System.out.println("[WARN] Found metaData file \"" + tarEntry.getName() + "\"");
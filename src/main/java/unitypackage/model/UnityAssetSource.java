@@ -0,0 +1,56 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.model;
+
+import java.util.Date;
+
+/**
+ * Where the values of a {@link UnityAsset} come from, by asset index.
+ * Either all the assets of a package in a {@link UnityAssetStore},
+ * or a single asset while scanning ({@link ScannedAssetSource}).
+ */
+abstract class UnityAssetSource {
+
+    abstract String getDirectoryGuid(int index);
+
+    /** Null if there's no asset.meta. */
+    abstract String getMetaGuid(int index);
+
+    /** Null if there's no pathname. */
+    abstract String getFullPath(int index);
+
+    abstract String getFileName(int index);
+
+    abstract boolean hasAsset(int index);
+
+    abstract String getAssetTarPath(int index);
+
+    abstract long getAssetSize(int index);
+
+    abstract long getAssetTarHeaderOffset(int index);
+
+    abstract long getAssetTarDataOffset(int index);
+
+    abstract Date getDateModified(int index);
+
+    abstract long getPreviewTarDataOffset(int index);
+
+    abstract long getPreviewSize(int index);
+}
@@ -0,0 +1,463 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package unitypackage.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Everything that's known about the assets of a .unitypackage, kept in arrays
+ * with one slot per asset instead of objects per asset, so even packages with
+ * hundreds of thousands of assets only take a few dozen bytes per asset.
+ * <p>
+ * GUIDs are kept as two longs, and the paths as a tree of shared path names.
+ * Values that don't fit that form (GUIDs that aren't 32 lowercase hex digits,
+ * unusual tar paths) are kept as strings on the side.
+ * A {@link UnityAsset} is a view of one index.
+ */
+final class UnityAssetStore extends UnityAssetSource {
+
+    /** The asset.meta guid is the same as the directory guid. */
+    private static final byte META_GUID_IS_DIRECTORY = 1;
+    /** There's an "asset" file. */
+    private static final byte HAS_ASSET = 2;
+    /** Tar paths start with "./". */
+    private static final byte DOT_ROOT = 4;
+
+    private static final String ASSET_FILE_NAME = "/asset";
+    private static final String DOT_ROOT_PREFIX = "./";
+
+    private final int size;
+
+    private final long[] guidHigh;
+    private final long[] guidLow;
+    private final byte[] flags;
+    /** Node of the pathname in the path tree, or -1 if there is no pathname. */
+    private final int[] pathNode;
+    private final long[] assetSize;
+    private final long[] assetDataOffset;
+    /** How far before the data the tar header starts. */
+    private final int[] assetHeaderLength;
+    /** Milliseconds, or Long.MIN_VALUE if unknown. */
+    private final long[] dateModified;
+    private final long[] previewDataOffset;
+    private final int[] previewSize;
+
+    /** Path tree: each node is one name in a path, under its parent node (or -1 for the top). */
+    private final int[] nodeParent;
+    private final String[] nodeName;
+
+    private final Map<Integer, String> oddDirectoryGuids;
+    private final Map<Integer, String> oddMetaGuids;
+    private final Map<Integer, String> oddAssetTarPaths;
+
+    UnityAssetStore(List<UnityAssetBuilder> builders) {
+        size = builders.size();
+        guidHigh = new long[size];
+        guidLow = new long[size];
+        flags = new byte[size];
+        pathNode = new int[size];
+        assetSize = new long[size];
+        assetDataOffset = new long[size];
+        assetHeaderLength = new int[size];
+        dateModified = new long[size];
+        previewDataOffset = new long[size];
+        previewSize = new int[size];
+        oddDirectoryGuids = new HashMap<>();
+        oddMetaGuids = new HashMap<>();
+        oddAssetTarPaths = new HashMap<>();
+
+        PathTreeBuilder pathTree = new PathTreeBuilder();
+
+        for (int i = 0; i < size; i++) {
+            UnityAssetBuilder b = builders.get(i);
+
+            String directoryGuid = b.getGuidBaseDirectory();
+            if (isHexGuid(directoryGuid)) {
+                guidHigh[i] = Long.parseUnsignedLong(directoryGuid.substring(0, 16), 16);
+                guidLow[i] = Long.parseUnsignedLong(directoryGuid.substring(16), 16);
+            } else {
+                oddDirectoryGuids.put(i, directoryGuid);
+            }
+
+            byte f = 0;
+            String metaGuid = b.getAsset_meta_guid();
+            if (directoryGuid.equals(metaGuid)) {
+                f |= META_GUID_IS_DIRECTORY;
+            } else if (metaGuid != null) {
+                oddMetaGuids.put(i, metaGuid);
+            }
+
+            String assetTarPath = b.getRawPathTo_asset_file();
+            if (assetTarPath != null) {
+                f |= HAS_ASSET;
+                if (assetTarPath.equals(directoryGuid + ASSET_FILE_NAME)) {
+                    // The usual form
+                } else if (assetTarPath.equals(DOT_ROOT_PREFIX + directoryGuid + ASSET_FILE_NAME)) {
+                    f |= DOT_ROOT;
+                } else {
+                    oddAssetTarPaths.put(i, assetTarPath);
+                }
+            }
+            flags[i] = f;
+
+            String pathname = b.getPathname_firstLine();
+            pathNode[i] = pathname == null ? -1 : pathTree.add(pathname);
+
+            assetSize[i] = b.getAsset_fileSize();
+            assetDataOffset[i] = b.getAsset_tarDataOffset();
+            assetHeaderLength[i] = b.getAsset_tarDataOffset() < 0 ? 0 :
+                    Math.toIntExact(b.getAsset_tarDataOffset() - b.getAsset_tarHeaderOffset());
+            Date date = b.getAsset_dateModified();
+            dateModified[i] = date == null ? Long.MIN_VALUE : date.getTime();
+            previewDataOffset[i] = b.getPreview_tarDataOffset();
+            previewSize[i] = Math.toIntExact(b.getPreview_fileSize());
+        }
+
+        nodeParent = pathTree.getParents();
+        nodeName = pathTree.getNames();
+    }
+
+    /**
+     * Builds the path tree, sharing nodes (and name strings) between paths.
+     */
+    private static class PathTreeBuilder {
+        private final Map<String, String> names = new HashMap<>();
+        /** (parent + 1, name) to node */
+        private final Map<ChildKey, Integer> children = new HashMap<>();
+        private int[] parents = new int[64];
+        private final List<String> nodeNames = new ArrayList<>();
+
+        int add(String path) {
+            int node = -1;
+            for (String name : path.split("/", -1)) {
+                String sharedName = names.computeIfAbsent(name, n -> n);
+                ChildKey key = new ChildKey(node, sharedName);
+                Integer child = children.get(key);
+                if (child == null) {
+                    child = nodeNames.size();
+                    if (child == parents.length) {
+                        parents = Arrays.copyOf(parents, parents.length * 2);
+                    }
+                    parents[child] = node;
+                    nodeNames.add(sharedName);
+                    children.put(key, child);
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        int[] getParents() {
+            return Arrays.copyOf(parents, nodeNames.size());
+        }
+
+        String[] getNames() {
+            return nodeNames.toArray(new String[0]);
+        }
+    }
+
+    private static class ChildKey {
+        final int parent;
+        final String name;
+
+        ChildKey(int parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ChildKey)) {
+                return false;
+            }
+            ChildKey other = (ChildKey) o;
+            return parent == other.parent && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return parent * 31 + name.hashCode();
+        }
+    }
+
+    private static boolean isHexGuid(String guid) {
+        if (guid.length() != 32) {
+            return false;
+        }
+        for (int i = 0; i < guid.length(); i++) {
+            char c = guid.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static String formatGuid(long high, long low) {
+        char[] chars = new char[32];
+        for (int i = 0; i < 16; i++) {
+            chars[15 - i] = HEX[(int) (high >>> (i * 4)) & 0xf];
+            chars[31 - i] = HEX[(int) (low >>> (i * 4)) & 0xf];
+        }
+        return new String(chars);
+    }
+
+    // ===================================================================================
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Views of every asset, made as they're asked for.
+     */
+    List<UnityAsset> asList(UnityPackage unityPackage) {
+        return new AssetList(unityPackage);
+    }
+
+    private class AssetList extends AbstractList<UnityAsset> implements RandomAccess {
+        private final UnityPackage unityPackage;
+
+        AssetList(UnityPackage unityPackage) {
+            this.unityPackage = unityPackage;
+        }
+
+        @Override
+        public UnityAsset get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + " size " + size);
+            }
+            return new UnityAsset(UnityAssetStore.this, index, unityPackage);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    @Override
+    String getDirectoryGuid(int index) {
+        String odd = oddDirectoryGuids.get(index);
+        return odd != null ? odd : formatGuid(guidHigh[index], guidLow[index]);
+    }
+
+    @Override
+    String getMetaGuid(int index) {
+        if ((flags[index] & META_GUID_IS_DIRECTORY) != 0) {
+            return getDirectoryGuid(index);
+        }
+        return oddMetaGuids.get(index);
+    }
+
+    @Override
+    String getFullPath(int index) {
+        int node = pathNode[index];
+        if (node < 0) {
+            return null;
+        }
+        int depth = 0;
+        int length = -1;
+        for (int n = node; n >= 0; n = nodeParent[n]) {
+            depth++;
+            length += nodeName[n].length() + 1;
+        }
+        String[] names = new String[depth];
+        for (int n = node; n >= 0; n = nodeParent[n]) {
+            names[--depth] = nodeName[n];
+        }
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                sb.append('/');
+            }
+            sb.append(names[i]);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    String getFileName(int index) {
+        int node = pathNode[index];
+        String name = nodeName[node];
+        if (name.isEmpty() || name.indexOf('\\') >= 0) {
+            // Let Path deal with the odd cases
+            return Paths.get(getFullPath(index)).getFileName().toString();
+        }
+        return name;
+    }
+
+    @Override
+    boolean hasAsset(int index) {
+        return (flags[index] & HAS_ASSET) != 0;
+    }
+
+    @Override
+    String getAssetTarPath(int index) {
+        if (!hasAsset(index)) {
+            return null;
+        }
+        String odd = oddAssetTarPaths.get(index);
+        if (odd != null) {
+            return odd;
+        }
+        String path = getDirectoryGuid(index) + ASSET_FILE_NAME;
+        return (flags[index] & DOT_ROOT) != 0 ? DOT_ROOT_PREFIX + path : path;
+    }
+
+    @Override
+    long getAssetSize(int index) {
+        return assetSize[index];
+    }
+
+    @Override
+    long getAssetTarHeaderOffset(int index) {
+        long dataOffset = assetDataOffset[index];
+        return dataOffset < 0 ? -1 : dataOffset - assetHeaderLength[index];
+    }
+
+    @Override
+    long getAssetTarDataOffset(int index) {
+        return assetDataOffset[index];
+    }
+
+    @Override
+    Date getDateModified(int index) {
+        long time = dateModified[index];
+        return time == Long.MIN_VALUE ? null : new Date(time);
+    }
+
+    @Override
+    long getPreviewTarDataOffset(int index) {
+        return previewDataOffset[index];
+    }
+
+    @Override
+    long getPreviewSize(int index) {
+        return previewSize[index];
+    }
+
+    // ===================================================================================
+
+    /**
+     * Saves the arrays for {@link UnityPackageIndexCache}.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeLong(guidHigh[i]);
+            out.writeLong(guidLow[i]);
+            out.writeByte(flags[i]);
+            out.writeInt(pathNode[i]);
+            out.writeLong(assetSize[i]);
+            out.writeLong(assetDataOffset[i]);
+            out.writeInt(assetHeaderLength[i]);
+            out.writeLong(dateModified[i]);
+            out.writeLong(previewDataOffset[i]);
+            out.writeInt(previewSize[i]);
+        }
+
+        out.writeInt(nodeParent.length);
+        for (int i = 0; i < nodeParent.length; i++) {
+            out.writeInt(nodeParent[i]);
+            out.writeUTF(nodeName[i]);
+        }
+
+        writeStrings(out, oddDirectoryGuids);
+        writeStrings(out, oddMetaGuids);
+        writeStrings(out, oddAssetTarPaths);
+    }
+
+    private UnityAssetStore(DataInputStream in) throws IOException {
+        size = in.readInt();
+        guidHigh = new long[size];
+        guidLow = new long[size];
+        flags = new byte[size];
+        pathNode = new int[size];
+        assetSize = new long[size];
+        assetDataOffset = new long[size];
+        assetHeaderLength = new int[size];
+        dateModified = new long[size];
+        previewDataOffset = new long[size];
+        previewSize = new int[size];
+        for (int i = 0; i < size; i++) {
+            guidHigh[i] = in.readLong();
+            guidLow[i] = in.readLong();
+            flags[i] = in.readByte();
+            pathNode[i] = in.readInt();
+            assetSize[i] = in.readLong();
+            assetDataOffset[i] = in.readLong();
+            assetHeaderLength[i] = in.readInt();
+            dateModified[i] = in.readLong();
+            previewDataOffset[i] = in.readLong();
+            previewSize[i] = in.readInt();
+        }
+
+        int nodeCount = in.readInt();
+        nodeParent = new int[nodeCount];
+        nodeName = new String[nodeCount];
+        Map<String, String> names = new HashMap<>();
+        for (int i = 0; i < nodeCount; i++) {
+            nodeParent[i] = in.readInt();
+            nodeName[i] = names.computeIfAbsent(in.readUTF(), n -> n);
+        }
+
+        oddDirectoryGuids = readStrings(in);
+        oddMetaGuids = readStrings(in);
+        oddAssetTarPaths = readStrings(in);
+    }
+
+    /**
+     * Restores arrays saved with {@link #write(DataOutputStream)}.
+     */
+    static UnityAssetStore read(DataInputStream in) throws IOException {
+        return new UnityAssetStore(in);
+    }
+
+    private static void writeStrings(DataOutputStream out, Map<Integer, String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (Map.Entry<Integer, String> entry : strings.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+    }
+
+    private static Map<Integer, String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<Integer, String> strings = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            int index = in.readInt();
+            strings.put(index, in.readUTF());
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package unitypackage.model;
+
+import java.io.IOException;
+
+/**
+ * Receives assets one at a time from {@link UnityPackage#scan(java.io.File, UnityAssetVisitor)}.
+ */
+public interface UnityAssetVisitor {
+
+    /**
+     * Called on the scanning thread for each asset once all its files have been read.
+     * Throwing stops the scan.
+     */
+    void visit(UnityAsset asset) throws IOException;
+}
@@ -18,154 +18,449 @@
 
 package unitypackage.model;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
-import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
+import javax.imageio.ImageIO;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import unitypackage.model.gzip.GzipIndex;
+import unitypackage.model.gzip.IndexedGzipInputStream;
+import unitypackage.model.gzip.ParallelGzipInputStream;
+import unitypackage.model.gzip.ReadAheadInputStream;
 
 /**
  * Indexes a .unitypackage and provides methods to read assets out of it.
  */
 public class UnityPackage {
 
-    private static final String ROOT_ICON = ".icon.png";
-
     private final File unitypackageFile;
+    private final UnityAssetStore assetStore;
     private final List<UnityAsset> unityAssetList;
+    /**
+     * Places to resume decompression so individual assets can be read
+     * without decompressing everything before them.
+     */
+    private final GzipIndex gzipIndex;
+
+    /**
+     * How many threads to use when decompressing the whole file.
+     */
+    private int decompressionThreads = Runtime.getRuntime().availableProcessors();
+
+    public static final int DEFAULT_READ_AHEAD_SIZE = 1024 * 1024;
+
+    /**
+     * How much of the .unitypackage to read at a time when decompressing from one place onwards.
+     */
+    private int readAheadSize = DEFAULT_READ_AHEAD_SIZE;
+
+    private static final int PREVIEW_CACHE_SIZE = 128;
+    private final PreviewCache previewCache = new PreviewCache(PREVIEW_CACHE_SIZE);
+
+    /**
+     * Hashes computed while indexing, if they were asked for.
+     */
+    private final ContentHashes indexedContentHashes;
 
     public UnityPackage(File unitypackageFile) throws IOException {
-        this.unitypackageFile = unitypackageFile;
+        this(unitypackageFile, false);
+    }
 
-        // TODO are empty asset directories possible?
-        // that would break this program
+    /**
+     * @param hashContents Also hash the contents of every file asset while indexing,
+     *                     which is cheaper than reading the whole file again for {@link #computeContentHashes()}.
+     */
+    public UnityPackage(File unitypackageFile, boolean hashContents) throws IOException {
+        this.unitypackageFile = unitypackageFile;
 
         TreeMap<String, UnityAssetBuilder> rootGuidDirectories = new TreeMap<>();
+        Map<String, byte[]> hashesByDirectory = hashContents ? new HashMap<>() : null;
+
+        GzipIndex.Builder gzipIndexBuilder = new GzipIndex.Builder();
+        IndexedGzipInputStream gzipInput = new IndexedGzipInputStream(new FileInputStream(unitypackageFile), gzipIndexBuilder);
+        // Decompress on another thread while this one goes through the tar entries
+        ReadAheadInputStream readAheadInput = new ReadAheadInputStream(Metrics.timeInflate(gzipInput));
+
+        try (Metrics.Span span = Metrics.start(Metrics.Phase.INDEXING);
+             TarArchiveInputStream tarInput = new TarArchiveInputStream(readAheadInput))
+        {
+            span.setDetail(unitypackageFile.getPath());
+            UnityPackageScanner scanner = new UnityPackageScanner(UnityPackageScanner.UNBOUNDED);
+            if (hashContents) {
+                ContentHashes.Hasher hasher = new ContentHashes.Hasher();
+                scanner.setAssetFileConsumer((guidDirectory, contents) ->
+                                                     hashesByDirectory.put(guidDirectory, hasher.hash(contents)));
+            }
+            scanner.scan(tarInput, readAheadInput::getPosition,
+                         builder -> rootGuidDirectories.put(builder.getGuidBaseDirectory(), builder));
+        }
 
-        try (TarArchiveInputStream tarInput = getTarInputStream()) {
+        assetStore = new UnityAssetStore(new ArrayList<>(rootGuidDirectories.values()));
+        unityAssetList = assetStore.asList(this);
+        gzipIndex = gzipIndexBuilder.build();
 
-            boolean hasDotRootDirectory = false;
+        if (hashContents) {
+            ContentHashes.Builder hashesBuilder = new ContentHashes.Builder(this);
+            for (UnityAsset asset : unityAssetList) {
+                byte[] hash = hashesByDirectory.get(asset.getDirectoryGuid());
+                if (hash != null && !asset.isProbablyDirectory()) {
+                    hashesBuilder.add(asset, hash);
+                }
+            }
+            indexedContentHashes = hashesBuilder.build();
+        } else {
+            indexedContentHashes = null;
+        }
+    }
 
-            TarArchiveEntry tarEntry;
-            while ((tarEntry = tarInput.getNextEntry()) != null) {
+    /**
+     * How many incomplete assets {@link #scan(File, UnityAssetVisitor)} holds on to by default.
+     */
+    public static final int DEFAULT_MAX_PENDING_ASSETS = 1024;
+
+    /**
+     * Reads through a .unitypackage once, passing each asset to the visitor as soon
+     * as its files have been found, without keeping a list of all the assets.
+     * <p>
+     * The assets are not attached to an opened {@link UnityPackage},
+     * so {@link UnityAsset#getPreview()} is always null for them.
+     */
+    public static void scan(File unitypackageFile, UnityAssetVisitor visitor) throws IOException {
+        scan(unitypackageFile, DEFAULT_MAX_PENDING_ASSETS, visitor);
+    }
 
-                final String rawFilePathString = tarEntry.getName();
-                final boolean isDirectory = tarEntry.isDirectory();
+    /**
+     * @param maxPendingAssets How many assets still missing files to hold in memory.
+     *                         If the files of an asset are spread further apart than this
+     *                         in the .unitypackage, the asset will be incomplete or skipped.
+     * @see #scan(File, UnityAssetVisitor)
+     */
+    public static void scan(File unitypackageFile, int maxPendingAssets, UnityAssetVisitor visitor) throws IOException {
+        ReadAheadInputStream readAheadInput = new ReadAheadInputStream(
+                Metrics.timeInflate(new GZIPInputStream(new FileInputStream(unitypackageFile), 64 * 1024)));
+
+        try (TarArchiveInputStream tarInput = new TarArchiveInputStream(readAheadInput)) {
+            new UnityPackageScanner(maxPendingAssets)
+                    .scan(tarInput, readAheadInput::getPosition,
+                          builder -> visitor.visit(new ScannedAssetSource(builder).asUnityAsset()));
+        }
+    }
 
-                Path rawPath = Paths.get(rawFilePathString);
+    /**
+     * Package index restored by {@link UnityPackageIndexCache}.
+     */
+    UnityPackage(File unitypackageFile, UnityAssetStore assetStore, GzipIndex gzipIndex) {
+        this.unitypackageFile = unitypackageFile;
+        this.assetStore = assetStore;
+        this.gzipIndex = gzipIndex;
+        unityAssetList = assetStore.asList(this);
+        indexedContentHashes = null;
+    }
 
-                if (rawPath.getNameCount() == 1) {
-                    String shouldBeDirName = rawPath.getName(0).toString();
-                    if (isDirectory) {
-                        if (".".equals(shouldBeDirName)) {
-                            hasDotRootDirectory = true;
-                            continue;
-                        }
-                    } else if (!ROOT_ICON.equals(shouldBeDirName)) {
-                        // I don't know if the root ".icon.png" would be next to a root "." or under it
-                        throw new RuntimeException("Found root path that is not a directory or " + ROOT_ICON + ": " + rawFilePathString);
-                    }
+    public File getUnitypackageFile() {
+        return unitypackageFile;
+    }
 
-                }
+    public List<UnityAsset> getUnityAssetList() {
+        return unityAssetList;
+    }
 
-                if (hasDotRootDirectory) {
-                    // Trim off the "." before continuing
-                    rawPath = rawPath.subpath(1, rawPath.getNameCount());
-                }
+    UnityAssetStore getAssetStore() {
+        return assetStore;
+    }
 
-                Path rawPathParent = rawPath.getParent();
+    GzipIndex getGzipIndex() {
+        return gzipIndex;
+    }
 
-                String guidDirectory;
-                String fileName;
+    /**
+     * Null unless it was opened with hashContents.
+     */
+    ContentHashes getIndexedContentHashes() {
+        return indexedContentHashes;
+    }
 
-                if (isDirectory) {
-                    if (rawPathParent != null) {
-                        throw new RuntimeException("Found nested directory \"" + rawFilePathString + "\"");
-                    }
-                    guidDirectory = rawPath.toString();
-                    fileName = null;
-                } else {
-                    fileName = rawPath.getFileName().toString();
-                    guidDirectory = rawPathParent == null ? null : rawPathParent.toString();
-                }
+    public int getDecompressionThreads() {
+        return decompressionThreads;
+    }
+
+    public void setDecompressionThreads(int decompressionThreads) {
+        this.decompressionThreads = Math.max(1, decompressionThreads);
+    }
+
+    public int getReadAheadSize() {
+        return readAheadSize;
+    }
+
+    public void setReadAheadSize(int readAheadSize) {
+        this.readAheadSize = Math.max(8 * 1024, readAheadSize);
+    }
+
+    /**
+     * Tar stream of the whole .unitypackage.
+     * If there's more than one thread available, the stretches between
+     * gzip access points are decompressed in parallel.
+     */
+    final public TarArchiveInputStream getTarInputStream() throws IOException {
+        if (decompressionThreads > 1 && !gzipIndex.getAccessPoints().isEmpty()) {
+            return new TarArchiveInputStream(Metrics.timeInflate(new ParallelGzipInputStream(unitypackageFile, gzipIndex, decompressionThreads)));
+        }
+        return new TarArchiveInputStream(Metrics.timeInflate(new GZIPInputStream(new FileInputStream(unitypackageFile), readAheadSize)));
+    }
+
+    public UnityArchiveInputStream getUnityArchiveInputStream() throws IOException {
+        return new UnityArchiveInputStream(this);
+    }
+
+    /**
+     * Stream of only the given assets, in the order they appear in the .unitypackage.
+     * Decompression starts from the closest access point before the first of them,
+     * and stops after the last.
+     */
+    public UnityArchiveInputStream getUnityArchiveInputStream(Collection<UnityAsset> assetsToRead) throws IOException {
+        long firstHeaderOffset = Long.MAX_VALUE;
+        for (UnityAsset asset : assetsToRead) {
+            if (!asset.isProbablyDirectory()) {
+                firstHeaderOffset = Math.min(firstHeaderOffset, asset.getTarHeaderOffset());
+            }
+        }
+        if (firstHeaderOffset == Long.MAX_VALUE) {
+            // Nothing to read
+            firstHeaderOffset = 0;
+        }
 
-                if (guidDirectory == null) {
-                    if (fileName.equals(ROOT_ICON)) {
-                        // Image icon exists in the root
-                        // TODO do something with this
-                        // For now ignore it
-                        continue;
-                    } else {
-                        throw new RuntimeException("Found nested directory \"" + rawFilePathString + "\"");
-                    }
+        IndexedGzipInputStream gzipInput = gzipIndex.openAt(unitypackageFile, firstHeaderOffset, readAheadSize);
+        return new UnityArchiveInputStream(new TarArchiveInputStream(Metrics.timeInflate(gzipInput)), assetsToRead);
+    }
+
+    /**
+     * Reads all the text assets in a single pass and indexes their words.
+     */
+    public ContentIndex buildContentIndex() throws IOException {
+        List<UnityAsset> textAssets = new ArrayList<>();
+        for (UnityAsset asset : unityAssetList) {
+            if (ContentIndex.isTextAsset(asset)) {
+                textAssets.add(asset);
+            }
+        }
+
+        ContentIndex.Builder builder = new ContentIndex.Builder(this);
+        if (!textAssets.isEmpty()) {
+            try (UnityArchiveInputStream unityIS = getUnityArchiveInputStream(textAssets)) {
+                UnityAsset asset;
+                while ((asset = unityIS.getNextEntry()) != null) {
+                    builder.add(asset, unityIS);
                 }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads all the file assets in a single pass and hashes their contents.
+     */
+    public ContentHashes computeContentHashes() throws IOException {
+        ContentHashes.Builder builder = new ContentHashes.Builder(this);
+        try (UnityArchiveInputStream unityIS = getUnityArchiveInputStream()) {
+            UnityAsset asset;
+            while ((asset = unityIS.getNextEntry()) != null) {
+                builder.add(asset, unityIS);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads every asset.meta and YAML asset in a single pass and collects the GUIDs they reference.
+     */
+    public DependencyGraph buildDependencyGraph() throws IOException {
+        Map<String, UnityAsset> assetsByDirectory = new HashMap<>();
+        for (UnityAsset asset : unityAssetList) {
+            assetsByDirectory.put(asset.getDirectoryGuid(), asset);
+        }
 
-                UnityAssetBuilder builder = rootGuidDirectories.get(guidDirectory);
-
-                if (builder == null) {
-                    if (isDirectory) {
-                        builder = new UnityAssetBuilder(guidDirectory);
-                    } else {
-                        // Do .tar archives always put a directory definition before any files under it?
-                        // In any case, be flexible.
-                        builder = new UnityAssetBuilder(guidDirectory, fileName, tarEntry, tarInput);
-                    }
-                    rootGuidDirectories.put(guidDirectory, builder);
-                } else {
-                    if (isDirectory)
-                        builder.assertGuidMatchesDirectoryName(guidDirectory);
-                    else
-                        builder.addFileFoundInDirectory(guidDirectory, fileName, tarEntry, tarInput);
+        DependencyGraph.Builder builder = new DependencyGraph.Builder(this);
+        try (TarArchiveInputStream tarInput = getTarInputStream()) {
+            TarArchiveEntry entry;
+            while ((entry = tarInput.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                String guidDirectory = getGuidDirectory(entry);
+                UnityAsset asset = guidDirectory == null ? null : assetsByDirectory.get(guidDirectory);
+                if (asset == null) {
+                    continue;
+                }
+                String fileName = entry.getName().substring(entry.getName().lastIndexOf('/') + 1);
+                if (fileName.equals("asset.meta") ||
+                    (fileName.equals("asset") && DependencyGraph.isYamlAsset(asset)))
+                {
+                    builder.add(asset, tarInput);
                 }
             }
         }
+        return builder.build();
+    }
 
-        List<UnityAsset> assets = rootGuidDirectories
-                .values()
-                .stream()
-                .map(tad -> tad.makeUnityAsset())
-                .collect(Collectors.toList());
+    /**
+     * The guid directory a tar entry is in (or is), or null for the root
+     * and the files in it like ".icon.png".
+     */
+    static String getGuidDirectory(TarArchiveEntry entry) {
+        String name = entry.getName().startsWith("./") ? entry.getName().substring(2) : entry.getName();
+        if (entry.isDirectory()) {
+            if (name.endsWith("/")) {
+                name = name.substring(0, name.length() - 1);
+            }
+            return name.isEmpty() || name.equals(".") ? null : name;
+        }
+        int slash = name.indexOf('/');
+        if (slash < 0) {
+            return null;
+        }
+        return name.substring(0, slash);
+    }
+
+    /**
+     * Extract several assets in a single pass through the .unitypackage.
+     * Each asset is saved under the output directory using its full Unity path.
+     * Directory assets are skipped.
+     * @return The files that were written.
+     */
+    public List<Path> extractAssets(Collection<UnityAsset> assetsToExtract, Path outputDirectory) throws IOException {
+        List<Path> extracted = new ArrayList<>();
+        Path normalizedOutput = outputDirectory.toAbsolutePath().normalize();
+        ChannelFileWriter fileWriter = new ChannelFileWriter();
+
+        try (UnityArchiveInputStream unityIS = getUnityArchiveInputStream(assetsToExtract)) {
+            UnityAsset nextAsset;
+            while ((nextAsset = unityIS.getNextEntry()) != null) {
+                Path assetPath = resolveOutputPath(normalizedOutput, nextAsset);
+                Files.createDirectories(assetPath.getParent());
+                fileWriter.write(assetPath, unityIS, nextAsset.getSize());
+                extracted.add(assetPath);
+            }
+        }
 
-        unityAssetList = Collections.unmodifiableList(assets);
+        return extracted;
     }
 
-    public File getUnitypackageFile() {
-        return unitypackageFile;
+    /**
+     * Where to extract an asset in the output directory.
+     * @param normalizedOutputDirectory Absolute and normalized.
+     * @throws IOException if the asset path would end up outside the output directory.
+     */
+    static Path resolveOutputPath(Path normalizedOutputDirectory, UnityAsset asset) throws IOException {
+        Path assetPath = normalizedOutputDirectory.resolve(asset.getFullPath()).normalize();
+        if (!assetPath.startsWith(normalizedOutputDirectory) || assetPath.equals(normalizedOutputDirectory)) {
+            throw new IOException("Asset path goes outside of the output directory: " + asset.getFullPath());
+        }
+        return assetPath;
     }
 
-    public List<UnityAsset> getUnityAssetList() {
-        return unityAssetList;
+    /**
+     * Stream of a single asset's contents.
+     * Decompression starts from the closest access point before the asset
+     * instead of the beginning of the file.
+     */
+    public InputStream getFileStream(UnityAsset assetToExtract) throws IOException {
+
+        if (assetToExtract.isProbablyDirectory()) {
+            throw new IllegalArgumentException("Not a file " + assetToExtract);
+        }
+
+        IndexedGzipInputStream gzipInput = gzipIndex.openAt(unitypackageFile, assetToExtract.getTarDataOffset(), readAheadSize);
+        return new AssetInputStream(Metrics.timeInflate(gzipInput), assetToExtract.getSize());
     }
 
-    final public TarArchiveInputStream getTarInputStream() throws IOException {
-        return new TarArchiveInputStream(new GZIPInputStream(new FileInputStream(unitypackageFile)));
+    /**
+     * The decoded "preview.png" of an asset, from the cache of recently used previews if possible.
+     * Returns null if there isn't one or it can't be read.
+     */
+    BufferedImage getPreview(UnityAsset asset) {
+        return previewCache.get(asset, this::readPreview);
     }
 
-    public UnityArchiveInputStream getUnityArchiveInputStream() throws IOException {
-        return new UnityArchiveInputStream(this);
+    private BufferedImage readPreview(UnityAsset asset) {
+        if (asset.getPreviewTarDataOffset() < 0) {
+            return null;
+        }
+        try (Metrics.Span span = Metrics.start(Metrics.Phase.PREVIEW_DECODE);
+             InputStream is = new AssetInputStream(Metrics.timeInflate(gzipIndex.openAt(unitypackageFile, asset.getPreviewTarDataOffset())),
+                                                   asset.getPreviewSize())) {
+            span.setDetail(asset.getFullPath());
+            return ImageIO.read(is);
+        } catch (IOException ex) {
+            System.out.println("[WARN] Unable to read preview of " + asset + ": " + ex.getMessage());
+            return null;
+        }
     }
 
-    public InputStream getFileStream(UnityAsset assetToExtract) throws IOException {
+    /**
+     * Stops at the end of the asset.
+     */
+    private static class AssetInputStream extends FilterInputStream {
 
-        UnityArchiveInputStream unityInputStream = new UnityArchiveInputStream(getTarInputStream(),
-                                                                               Collections.singletonList(assetToExtract));
+        private long remaining;
 
-        UnityAsset assetFound = unityInputStream.getNextEntry();
+        public AssetInputStream(InputStream in, long size) {
+            super(in);
+            remaining = size;
+        }
 
-        // Sanity check
-        if (assetToExtract != assetFound) {
-            throw new IllegalArgumentException("This should never happen");
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
         }
 
-        return unityInputStream;
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
     }
 
 }
@@ -0,0 +1,377 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package unitypackage.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import unitypackage.model.gzip.GzipIndex;
+
+/**
+ * Saves the index of a .unitypackage (what {@link UnityPackage} finds when it
+ * reads through the whole file) in a cache directory, so opening the same file
+ * again doesn't have to decompress it. The {@link ContentIndex},
+ * {@link DependencyGraph} and {@link ContentHashes} are saved next to it.
+ * <p>
+ * A cache file is only used if the .unitypackage path, size, modified time,
+ * and a checksum of its first and last bytes all still match.
+ */
+public class UnityPackageIndexCache {
+
+    private static final int MAGIC = 0x55504958; // "UPIX"
+    private static final int VERSION = 3;
+    private static final String INDEX_EXTENSION = ".idx";
+
+    private static final int CONTENT_MAGIC = 0x55504354; // "UPCT"
+    private static final int CONTENT_VERSION = 1;
+    private static final String CONTENT_EXTENSION = ".content";
+
+    private static final int DEPENDENCY_MAGIC = 0x55504447; // "UPDG"
+    private static final int DEPENDENCY_VERSION = 1;
+    private static final String DEPENDENCY_EXTENSION = ".deps";
+
+    private static final int HASHES_MAGIC = 0x55505348; // "UPSH"
+    private static final int HASHES_VERSION = 1;
+    private static final String HASHES_EXTENSION = ".sha256";
+
+    /**
+     * How much of the start and end of the .unitypackage goes into the fingerprint.
+     */
+    private static final int FINGERPRINT_BYTES = 64 * 1024;
+
+    private final File cacheDirectory;
+
+    public UnityPackageIndexCache(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public static File getDefaultCacheDirectory() {
+        return new File(System.getProperty("user.home"), ".unitypackageviewer" + File.separator + "index-cache");
+    }
+
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Loads the index from the cache if possible,
+     * otherwise indexes the .unitypackage and saves it in the cache.
+     */
+    public UnityPackage open(File unitypackageFile) throws IOException {
+        return open(unitypackageFile, false);
+    }
+
+    /**
+     * @param hashContents If the package isn't in the cache, also hash its files while indexing
+     *                     and save them for {@link #openContentHashes(UnityPackage)}.
+     */
+    public UnityPackage open(File unitypackageFile, boolean hashContents) throws IOException {
+        File cacheFile = getCacheFile(unitypackageFile, INDEX_EXTENSION);
+        FileStamp stamp = new FileStamp(unitypackageFile);
+
+        if (cacheFile.isFile()) {
+            try (Metrics.Span span = Metrics.start(Metrics.Phase.CACHE_LOAD)) {
+                span.setDetail(unitypackageFile.getPath());
+                UnityPackage cached = read(cacheFile, MAGIC, VERSION, stamp, zin -> readIndex(zin, unitypackageFile));
+                if (cached != null) {
+                    return cached;
+                }
+            } catch (IOException | RuntimeException ex) {
+                System.out.println("[WARN] Ignoring unreadable index cache " + cacheFile + ": " + ex);
+            }
+        }
+
+        UnityPackage unityPackage = new UnityPackage(unitypackageFile, hashContents);
+
+        try {
+            write(cacheFile, MAGIC, VERSION, stamp, zout -> writeIndex(zout, unityPackage));
+        } catch (IOException ex) {
+            System.out.println("[WARN] Unable to save index cache " + cacheFile + ": " + ex.getMessage());
+        }
+
+        ContentHashes contentHashes = unityPackage.getIndexedContentHashes();
+        if (contentHashes != null) {
+            File hashesFile = getCacheFile(unitypackageFile, HASHES_EXTENSION);
+            try {
+                write(hashesFile, HASHES_MAGIC, HASHES_VERSION, stamp, contentHashes::write);
+            } catch (IOException ex) {
+                System.out.println("[WARN] Unable to save content hash cache " + hashesFile + ": " + ex.getMessage());
+            }
+        }
+
+        return unityPackage;
+    }
+
+    /**
+     * Loads the content index of the package from the cache if possible,
+     * otherwise reads the text assets to build it and saves it in the cache.
+     */
+    public ContentIndex openContentIndex(UnityPackage unityPackage) throws IOException {
+        File unitypackageFile = unityPackage.getUnitypackageFile();
+        File cacheFile = getCacheFile(unitypackageFile, CONTENT_EXTENSION);
+        FileStamp stamp = new FileStamp(unitypackageFile);
+
+        if (cacheFile.isFile()) {
+            try {
+                ContentIndex cached = read(cacheFile, CONTENT_MAGIC, CONTENT_VERSION, stamp,
+                                           zin -> ContentIndex.read(zin, unityPackage));
+                if (cached != null) {
+                    return cached;
+                }
+            } catch (IOException | RuntimeException ex) {
+                System.out.println("[WARN] Ignoring unreadable content index cache " + cacheFile + ": " + ex);
+            }
+        }
+
+        ContentIndex contentIndex = unityPackage.buildContentIndex();
+
+        try {
+            write(cacheFile, CONTENT_MAGIC, CONTENT_VERSION, stamp, contentIndex::write);
+        } catch (IOException ex) {
+            System.out.println("[WARN] Unable to save content index cache " + cacheFile + ": " + ex.getMessage());
+        }
+
+        return contentIndex;
+    }
+
+    /**
+     * Loads the dependency graph of the package from the cache if possible,
+     * otherwise reads the asset.meta and YAML files to build it and saves it in the cache.
+     */
+    public DependencyGraph openDependencyGraph(UnityPackage unityPackage) throws IOException {
+        File unitypackageFile = unityPackage.getUnitypackageFile();
+        File cacheFile = getCacheFile(unitypackageFile, DEPENDENCY_EXTENSION);
+        FileStamp stamp = new FileStamp(unitypackageFile);
+
+        if (cacheFile.isFile()) {
+            try {
+                DependencyGraph cached = read(cacheFile, DEPENDENCY_MAGIC, DEPENDENCY_VERSION, stamp,
+                                              zin -> DependencyGraph.read(zin, unityPackage));
+                if (cached != null) {
+                    return cached;
+                }
+            } catch (IOException | RuntimeException ex) {
+                System.out.println("[WARN] Ignoring unreadable dependency graph cache " + cacheFile + ": " + ex);
+            }
+        }
+
+        DependencyGraph dependencyGraph = unityPackage.buildDependencyGraph();
+
+        try {
+            write(cacheFile, DEPENDENCY_MAGIC, DEPENDENCY_VERSION, stamp, dependencyGraph::write);
+        } catch (IOException ex) {
+            System.out.println("[WARN] Unable to save dependency graph cache " + cacheFile + ": " + ex.getMessage());
+        }
+
+        return dependencyGraph;
+    }
+
+    /**
+     * Loads the content hashes of the package from the cache if possible,
+     * otherwise reads every file asset to hash them and saves them in the cache.
+     */
+    public ContentHashes openContentHashes(UnityPackage unityPackage) throws IOException {
+        if (unityPackage.getIndexedContentHashes() != null) {
+            // Already saved by open()
+            return unityPackage.getIndexedContentHashes();
+        }
+
+        File unitypackageFile = unityPackage.getUnitypackageFile();
+        File cacheFile = getCacheFile(unitypackageFile, HASHES_EXTENSION);
+        FileStamp stamp = new FileStamp(unitypackageFile);
+
+        if (cacheFile.isFile()) {
+            try {
+                ContentHashes cached = read(cacheFile, HASHES_MAGIC, HASHES_VERSION, stamp,
+                                            zin -> ContentHashes.read(zin, unityPackage));
+                if (cached != null) {
+                    return cached;
+                }
+            } catch (IOException | RuntimeException ex) {
+                System.out.println("[WARN] Ignoring unreadable content hash cache " + cacheFile + ": " + ex);
+            }
+        }
+
+        ContentHashes contentHashes = unityPackage.computeContentHashes();
+
+        try {
+            write(cacheFile, HASHES_MAGIC, HASHES_VERSION, stamp, contentHashes::write);
+        } catch (IOException ex) {
+            System.out.println("[WARN] Unable to save content hash cache " + cacheFile + ": " + ex.getMessage());
+        }
+
+        return contentHashes;
+    }
+
+    private File getCacheFile(File unitypackageFile, String extension) throws IOException {
+        String path = unitypackageFile.getCanonicalPath();
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] hash = md.digest(path.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return new File(cacheDirectory, sb.append(extension).toString());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * What identifies a particular version of a .unitypackage file.
+     */
+    private static class FileStamp {
+        final String path;
+        final long size;
+        final long lastModified;
+        final long fingerprint;
+
+        FileStamp(File unitypackageFile) throws IOException {
+            path = unitypackageFile.getCanonicalPath();
+            size = unitypackageFile.length();
+            lastModified = unitypackageFile.lastModified();
+
+            CRC32 crc = new CRC32();
+            try (RandomAccessFile raf = new RandomAccessFile(unitypackageFile, "r")) {
+                byte[] buffer = new byte[(int) Math.min(FINGERPRINT_BYTES, size)];
+                raf.readFully(buffer);
+                crc.update(buffer);
+                if (size > buffer.length) {
+                    int tailLength = (int) Math.min(FINGERPRINT_BYTES, size - buffer.length);
+                    raf.seek(size - tailLength);
+                    raf.readFully(buffer, 0, tailLength);
+                    crc.update(buffer, 0, tailLength);
+                }
+            }
+            fingerprint = crc.getValue();
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(path);
+            out.writeLong(size);
+            out.writeLong(lastModified);
+            out.writeLong(fingerprint);
+        }
+
+        boolean matches(DataInputStream in) throws IOException {
+            return path.equals(in.readUTF()) &
+                   size == in.readLong() &
+                   lastModified == in.readLong() &
+                   fingerprint == in.readLong();
+        }
+    }
+
+    // ===================================================================================
+
+    private interface CacheWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private interface CacheReader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private static void write(File cacheFile, int magic, int version, FileStamp stamp, CacheWriter contents)
+            throws IOException
+    {
+        Files.createDirectories(cacheFile.getParentFile().toPath());
+
+        // Write to a temp file first so a partly written file is never read.
+        // Each write gets its own, since several threads or processes can write the same package's cache.
+        Path tempFile = Files.createTempFile(cacheFile.getParentFile().toPath(), cacheFile.getName(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(magic);
+                out.writeInt(version);
+                stamp.write(out);
+
+                // The rest is compressed, there's a lot of repetition
+                DataOutputStream zout = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(out)));
+                contents.write(zout);
+                zout.close();
+            }
+
+            Files.move(tempFile, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Returns null if the cache is for a different version of the file.
+     */
+    private static <T> T read(File cacheFile, int magic, int version, FileStamp stamp, CacheReader<T> contents)
+            throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (in.readInt() != magic || in.readInt() != version || !stamp.matches(in)) {
+                return null;
+            }
+
+            DataInputStream zin = new DataInputStream(new BufferedInputStream(new InflaterInputStream(in)));
+            return contents.read(zin);
+        }
+    }
+
+    private static void writeIndex(DataOutputStream zout, UnityPackage unityPackage) throws IOException {
+        unityPackage.getAssetStore().write(zout);
+
+        List<GzipIndex.AccessPoint> accessPoints = unityPackage.getGzipIndex().getAccessPoints();
+        zout.writeInt(accessPoints.size());
+        for (GzipIndex.AccessPoint ap : accessPoints) {
+            zout.writeLong(ap.getUncompressedOffset());
+            zout.writeLong(ap.getCompressedBitOffset());
+            zout.writeInt(ap.getWindow().length);
+            zout.write(ap.getWindow());
+        }
+    }
+
+    private static UnityPackage readIndex(DataInputStream zin, File unitypackageFile) throws IOException {
+        UnityAssetStore assetStore = UnityAssetStore.read(zin);
+
+        int accessPointCount = zin.readInt();
+        List<GzipIndex.AccessPoint> accessPoints = new ArrayList<>(accessPointCount);
+        for (int i = 0; i < accessPointCount; i++) {
+            long uncompressedOffset = zin.readLong();
+            long compressedBitOffset = zin.readLong();
+            byte[] window = new byte[zin.readInt()];
+            zin.readFully(window);
+            accessPoints.add(new GzipIndex.AccessPoint(uncompressedOffset, compressedBitOffset, window));
+        }
+
+        return new UnityPackage(unitypackageFile, assetStore, new GzipIndex(accessPoints));
+    }
+}
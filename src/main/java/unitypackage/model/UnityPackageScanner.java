@@ -0,0 +1,265 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package unitypackage.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.LongSupplier;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+/**
+ * Walks through the tar entries of a .unitypackage, collecting the files
+ * of each guid directory into a {@link UnityAssetBuilder}.
+ * <p>
+ * Builders are handed off as they're finished. The files of an asset are normally
+ * close together in the tar, so once a builder has its "asset.meta" and "pathname",
+ * and nothing has been added to it for a few entries, it's assumed to be complete.
+ * Builders still missing files wait until more than {@code maxPendingAssets}
+ * are waiting, or the end of the tar.
+ */
+class UnityPackageScanner {
+
+    private static final String ROOT_ICON = ".icon.png";
+
+    /**
+     * How many tar entries to wait after the last file of a finished builder
+     * in case more of its files show up.
+     */
+    private static final int SETTLE_ENTRIES = 64;
+
+    /**
+     * Keep every builder until the end.
+     */
+    static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    interface BuilderConsumer {
+        void accept(UnityAssetBuilder builder) throws IOException;
+    }
+
+    interface AssetFileConsumer {
+        /**
+         * @param contents The contents of the "asset" file, which don't have to be read.
+         */
+        void accept(String guidDirectory, InputStream contents) throws IOException;
+    }
+
+    private static class Pending {
+        final UnityAssetBuilder builder;
+        long lastEntry;
+
+        Pending(UnityAssetBuilder builder) {
+            this.builder = builder;
+        }
+    }
+
+    private final int maxPendingAssets;
+    private final boolean bounded;
+    private AssetFileConsumer assetFileConsumer;
+
+    /**
+     * @param maxPendingAssets How many unfinished builders to hold on to,
+     *                         or {@link #UNBOUNDED} to only hand them off at the end.
+     */
+    UnityPackageScanner(int maxPendingAssets) {
+        if (maxPendingAssets < 1) {
+            throw new IllegalArgumentException("Need to hold at least 1 asset " + maxPendingAssets);
+        }
+        this.maxPendingAssets = maxPendingAssets;
+        this.bounded = maxPendingAssets != UNBOUNDED;
+    }
+
+    /**
+     * Also passes the contents of every "asset" file to the consumer while scanning,
+     * so it can be read without going through the .unitypackage again.
+     */
+    void setAssetFileConsumer(AssetFileConsumer assetFileConsumer) {
+        this.assetFileConsumer = assetFileConsumer;
+    }
+
+    /**
+     * @param tarPosition How many bytes of the tar have been read so far.
+     */
+    void scan(TarArchiveInputStream tarInput, LongSupplier tarPosition, BuilderConsumer consumer) throws IOException {
+
+        // TODO are empty asset directories possible?
+        // that would break this program
+
+        // Least recently added to first
+        LinkedHashMap<String, Pending> pending = new LinkedHashMap<>(16, 0.75f, bounded);
+        long entryCount = 0;
+
+        boolean hasDotRootDirectory = false;
+        long nextTarHeaderOffset = 0;
+
+        TarArchiveEntry tarEntry;
+        while ((tarEntry = nextEntry(tarInput)) != null) {
+            entryCount++;
+
+            // The tar stream reads nothing past the entry header, so this is where the entry contents start
+            final long tarDataOffset = tarPosition.getAsLong();
+            final long tarHeaderOffset = nextTarHeaderOffset;
+            nextTarHeaderOffset = alignToTarRecord(tarDataOffset + tarEntry.getSize());
+
+            final String rawFilePathString = tarEntry.getName();
+            final boolean isDirectory = tarEntry.isDirectory();
+
+            Path rawPath = Paths.get(rawFilePathString);
+
+            if (rawPath.getNameCount() == 1) {
+                String shouldBeDirName = rawPath.getName(0).toString();
+                if (isDirectory) {
+                    if (".".equals(shouldBeDirName)) {
+                        hasDotRootDirectory = true;
+                        continue;
+                    }
+                } else if (!ROOT_ICON.equals(shouldBeDirName)) {
+                    // I don't know if the root ".icon.png" would be next to a root "." or under it
+                    throw new RuntimeException("Found root path that is not a directory or " + ROOT_ICON + ": " + rawFilePathString);
+                }
+
+            }
+
+            if (hasDotRootDirectory) {
+                // Trim off the "." before continuing
+                rawPath = rawPath.subpath(1, rawPath.getNameCount());
+            }
+
+            Path rawPathParent = rawPath.getParent();
+
+            String guidDirectory;
+            String fileName;
+
+            if (isDirectory) {
+                if (rawPathParent != null) {
+                    throw new RuntimeException("Found nested directory \"" + rawFilePathString + "\"");
+                }
+                guidDirectory = rawPath.toString();
+                fileName = null;
+            } else {
+                fileName = rawPath.getFileName().toString();
+                guidDirectory = rawPathParent == null ? null : rawPathParent.toString();
+            }
+
+            if (guidDirectory == null) {
+                if (fileName.equals(ROOT_ICON)) {
+                    // Image icon exists in the root
+                    // TODO do something with this
+                    // For now ignore it
+                    continue;
+                } else {
+                    throw new RuntimeException("Found nested directory \"" + rawFilePathString + "\"");
+                }
+            }
+
+            Pending entry = pending.get(guidDirectory);
+
+            if (entry == null) {
+                UnityAssetBuilder builder;
+                if (isDirectory) {
+                    builder = new UnityAssetBuilder(guidDirectory);
+                } else {
+                    // Do .tar archives always put a directory definition before any files under it?
+                    // In any case, be flexible.
+                    builder = new UnityAssetBuilder(guidDirectory, fileName, tarEntry, tarInput,
+                                                    tarHeaderOffset, tarDataOffset);
+                }
+                entry = new Pending(builder);
+                pending.put(guidDirectory, entry);
+            } else {
+                if (isDirectory)
+                    entry.builder.assertGuidMatchesDirectoryName(guidDirectory);
+                else
+                    entry.builder.addFileFoundInDirectory(guidDirectory, fileName, tarEntry, tarInput,
+                                                          tarHeaderOffset, tarDataOffset);
+            }
+            entry.lastEntry = entryCount;
+
+            if (assetFileConsumer != null && !isDirectory && "asset".equals(fileName)) {
+                assetFileConsumer.accept(guidDirectory, tarInput);
+            }
+
+            if (bounded) {
+                handOffSettled(pending, entryCount, consumer);
+            }
+        }
+
+        for (Pending entry : pending.values()) {
+            handOff(entry.builder, consumer);
+        }
+    }
+
+    private static TarArchiveEntry nextEntry(TarArchiveInputStream tarInput) throws IOException {
+        long start = System.nanoTime();
+        TarArchiveEntry tarEntry = tarInput.getNextEntry();
+        Metrics.record(Metrics.Phase.TAR_HEADERS, System.nanoTime() - start);
+        if (tarEntry != null) {
+            Metrics.addTarEntry();
+        }
+        return tarEntry;
+    }
+
+    /**
+     * Hands off the builders that haven't been added to in a while,
+     * oldest first, and any over the limit.
+     */
+    private void handOffSettled(LinkedHashMap<String, Pending> pending, long entryCount,
+                                BuilderConsumer consumer) throws IOException {
+        Iterator<Pending> oldestFirst = pending.values().iterator();
+        while (oldestFirst.hasNext()) {
+            Pending oldest = oldestFirst.next();
+            boolean settled = isFinished(oldest.builder) && entryCount - oldest.lastEntry >= SETTLE_ENTRIES;
+            if (!settled && pending.size() <= maxPendingAssets) {
+                break;
+            }
+            oldestFirst.remove();
+            handOff(oldest.builder, consumer);
+        }
+    }
+
+    /**
+     * Directories have no "asset" file, so it can't be required.
+     */
+    private static boolean isFinished(UnityAssetBuilder builder) {
+        return builder.getAsset_meta_guid() != null &&
+               builder.getPathname_firstLine() != null;
+    }
+
+    private void handOff(UnityAssetBuilder builder, BuilderConsumer consumer) throws IOException {
+        if (bounded && builder.getPathname_firstLine() == null) {
+            // Most likely the rest of its files were too far away and it was already handed off
+            System.out.println("[WARN] Skipping guid directory " + builder.getGuidBaseDirectory() + " without a pathname");
+            return;
+        }
+        consumer.accept(builder);
+    }
+
+    private static final int TAR_RECORD_SIZE = 512;
+
+    /**
+     * Tar entry contents are padded to a multiple of the record size.
+     */
+    static long alignToTarRecord(long offset) {
+        return (offset + TAR_RECORD_SIZE - 1) / TAR_RECORD_SIZE * TAR_RECORD_SIZE;
+    }
+}
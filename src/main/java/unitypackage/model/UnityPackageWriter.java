@@ -0,0 +1,151 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.model;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import unitypackage.model.gzip.ParallelGzipOutputStream;
+
+/**
+ * Writes a new .unitypackage with some of the assets of another one.
+ * The tar entries of the chosen assets (asset, asset.meta, pathname, preview.png, ...)
+ * are copied as they're read from the source, so nothing is extracted to disk,
+ * and the new package is compressed with several threads.
+ */
+public class UnityPackageWriter {
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final int compressionThreads;
+
+    public UnityPackageWriter(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * The directories the assets are in are also written, if they're in the source,
+     * so they keep their GUIDs when imported.
+     * The output only appears once it's completely written.
+     *
+     * @return The assets written, including those directories, in the order of the source.
+     */
+    public List<UnityAsset> write(UnityPackage source, Collection<UnityAsset> assets, File output) throws IOException {
+        Set<String> guidDirectories = selectGuidDirectories(source, assets);
+
+        // Otherwise a failure partway would leave what looks like a complete package
+        Path outputPath = output.getAbsoluteFile().toPath();
+        Path tempFile = Files.createTempFile(outputPath.getParent(), outputPath.getFileName().toString(), ".tmp");
+        try {
+            copyEntries(source, guidDirectories, tempFile);
+            Files.move(tempFile, outputPath, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException ex) {
+            try {
+                Files.deleteIfExists(tempFile);
+            } catch (IOException deleteEx) {
+                ex.addSuppressed(deleteEx);
+            }
+            throw ex;
+        }
+
+        List<UnityAsset> written = new ArrayList<>();
+        for (UnityAsset asset : source.getUnityAssetList()) {
+            if (guidDirectories.contains(asset.getDirectoryGuid())) {
+                written.add(asset);
+            }
+        }
+        return written;
+    }
+
+    private void copyEntries(UnityPackage source, Set<String> guidDirectories, Path output) throws IOException {
+        try (TarArchiveInputStream tarInput = source.getTarInputStream();
+             TarArchiveOutputStream tarOutput = new TarArchiveOutputStream(new BufferedOutputStream(
+                     new ParallelGzipOutputStream(Files.newOutputStream(output), compressionThreads),
+                     OUTPUT_BUFFER_SIZE)))
+        {
+            tarOutput.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tarOutput.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+            byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+            TarArchiveEntry entry;
+            while ((entry = tarInput.getNextEntry()) != null) {
+                String guidDirectory = UnityPackage.getGuidDirectory(entry);
+                // Keep the root too, like the "./" entry and ".icon.png"
+                if (guidDirectory != null && !guidDirectories.contains(guidDirectory)) {
+                    continue;
+                }
+                TarArchiveEntry copy = new TarArchiveEntry(entry.getName(),
+                        entry.isDirectory() ? TarArchiveEntry.LF_DIR : TarArchiveEntry.LF_NORMAL);
+                copy.setMode(entry.getMode());
+                copy.setModTime(entry.getModTime());
+                if (!entry.isDirectory()) {
+                    copy.setSize(entry.getSize());
+                }
+                tarOutput.putArchiveEntry(copy);
+                if (!entry.isDirectory()) {
+                    copy(tarInput, tarOutput, buffer);
+                }
+                tarOutput.closeArchiveEntry();
+            }
+        }
+    }
+
+    /**
+     * Copies the rest of the stream through the buffer.
+     */
+    static void copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static Set<String> selectGuidDirectories(UnityPackage source, Collection<UnityAsset> assets) {
+        Set<String> guidDirectories = new HashSet<>();
+        Set<String> parentPaths = new HashSet<>();
+        for (UnityAsset asset : assets) {
+            guidDirectories.add(asset.getDirectoryGuid());
+            String path = asset.getFullPath();
+            for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+                parentPaths.add(path.substring(0, slash));
+            }
+        }
+
+        for (UnityAsset asset : source.getUnityAssetList()) {
+            if (asset.isProbablyDirectory() && parentPaths.contains(asset.getFullPath())) {
+                guidDirectories.add(asset.getDirectoryGuid());
+            }
+        }
+        return guidDirectories;
+    }
+}
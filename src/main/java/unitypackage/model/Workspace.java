@@ -0,0 +1,235 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Several packages opened together, like the vendor packages imported into one project,
+ * with an index of which assets have each GUID across all of them.
+ * <p>
+ * Unity keeps only one asset per GUID, so the same GUID in two packages is either
+ * the same asset shipped in both (same path), or a collision that breaks one of the imports.
+ */
+public class Workspace {
+
+    public enum ConflictKind {
+        /** Every package has the GUID at the same path, probably the same asset. */
+        SHARED,
+        /** The GUID is used for different paths, so importing all the packages will break some references. */
+        COLLISION,
+    }
+
+    /**
+     * A GUID found more than once in the workspace.
+     */
+    public static class Conflict {
+        private final String guid;
+        private final List<UnityAsset> assets;
+        private final ConflictKind kind;
+
+        private Conflict(String guid, List<UnityAsset> assets) {
+            this.guid = guid;
+            this.assets = assets;
+            String path = assets.get(0).getFullPath();
+            ConflictKind kind = ConflictKind.SHARED;
+            for (UnityAsset asset : assets) {
+                if (!path.equals(asset.getFullPath())) {
+                    kind = ConflictKind.COLLISION;
+                    break;
+                }
+            }
+            this.kind = kind;
+        }
+
+        public String getGuid() {
+            return guid;
+        }
+
+        /**
+         * In the order of the packages in the workspace.
+         */
+        public List<UnityAsset> getAssets() {
+            return assets;
+        }
+
+        public ConflictKind getKind() {
+            return kind;
+        }
+    }
+
+    private final List<UnityPackage> packages;
+    private final Map<File, Exception> failures;
+    private final Map<UnityPackage, Integer> packageOrder = new HashMap<>();
+    /** Package order, then the order in the package. */
+    private final Comparator<UnityAsset> assetOrder =
+            Comparator.<UnityAsset>comparingInt(asset -> packageOrder.get(asset.getUnityPackage()))
+                      .thenComparingInt(UnityAsset::getIndex);
+    /**
+     * Lower case GUID to the {@link UnityAsset} with it, or a {@code UnityAsset[]}
+     * for the few GUIDs in more than one place, so there isn't a list for every GUID.
+     */
+    private final Map<String, Object> assetsByGuid;
+
+    private Workspace(List<UnityPackage> packages, Map<File, Exception> failures, Map<String, Object> assetsByGuid) {
+        this.packages = packages;
+        this.failures = failures;
+        this.assetsByGuid = assetsByGuid;
+        for (int i = 0; i < packages.size(); i++) {
+            packageOrder.put(packages.get(i), i);
+        }
+    }
+
+    /**
+     * Opens the packages at the same time, each one adding its assets to the index as soon as it's open.
+     * When there are several, each one is decompressed on a single thread.
+     * Packages that can't be opened are left out and reported by {@link #getFailures()}.
+     *
+     * @param threads How many packages to open at the same time.
+     */
+    public static Workspace open(List<File> unitypackageFiles, int threads, UnityPackageIndexCache indexCache) {
+        UnityPackage[] opened = new UnityPackage[unitypackageFiles.size()];
+        Map<File, Exception> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+        ConcurrentHashMap<String, Object> assetsByGuid = new ConcurrentHashMap<>();
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < opened.length; i++) {
+                final int p = i;
+                tasks.add(pool.submit(() -> {
+                    File unitypackageFile = unitypackageFiles.get(p);
+                    try {
+                        UnityPackage unityPackage = indexCache.open(unitypackageFile);
+                        if (opened.length > 1) {
+                            unityPackage.setDecompressionThreads(1);
+                        }
+                        for (UnityAsset asset : unityPackage.getUnityAssetList()) {
+                            String guid = asset.getGuid();
+                            if (guid != null) {
+                                assetsByGuid.merge(guid.toLowerCase(Locale.ROOT), asset, Workspace::combine);
+                            }
+                        }
+                        opened[p] = unityPackage;
+                    } catch (IOException | RuntimeException ex) {
+                        failures.put(unitypackageFile, ex);
+                    }
+                }));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        List<UnityPackage> packages = new ArrayList<>();
+        for (UnityPackage unityPackage : opened) {
+            if (unityPackage != null) {
+                packages.add(unityPackage);
+            }
+        }
+        Workspace workspace = new Workspace(Collections.unmodifiableList(packages),
+                                            Collections.unmodifiableMap(new LinkedHashMap<>(failures)), assetsByGuid);
+        workspace.sortDuplicates();
+        return workspace;
+    }
+
+    private static Object combine(Object existing, Object added) {
+        UnityAsset[] a = existing instanceof UnityAsset ? new UnityAsset[] { (UnityAsset) existing } : (UnityAsset[]) existing;
+        UnityAsset[] b = added instanceof UnityAsset ? new UnityAsset[] { (UnityAsset) added } : (UnityAsset[]) added;
+        UnityAsset[] both = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+
+    /**
+     * The packages were indexed in whatever order they finished opening.
+     */
+    private void sortDuplicates() {
+        for (Object value : assetsByGuid.values()) {
+            if (value instanceof UnityAsset[]) {
+                Arrays.sort((UnityAsset[]) value, assetOrder);
+            }
+        }
+    }
+
+    /**
+     * The packages that were opened, in the order given.
+     */
+    public List<UnityPackage> getPackages() {
+        return packages;
+    }
+
+    /**
+     * Why each package that couldn't be opened failed.
+     */
+    public Map<File, Exception> getFailures() {
+        return failures;
+    }
+
+    /**
+     * How many different GUIDs are in the workspace.
+     */
+    public int getGuidCount() {
+        return assetsByGuid.size();
+    }
+
+    /**
+     * Every asset with the GUID, in package order. Empty if no package has it.
+     */
+    public List<UnityAsset> find(String guid) {
+        Object value = assetsByGuid.get(guid.toLowerCase(Locale.ROOT));
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        if (value instanceof UnityAsset) {
+            return Collections.singletonList((UnityAsset) value);
+        }
+        return Collections.unmodifiableList(Arrays.asList((UnityAsset[]) value));
+    }
+
+    /**
+     * GUIDs found more than once, ordered by where they first appear.
+     */
+    public List<Conflict> getConflicts() {
+        List<Conflict> conflicts = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : assetsByGuid.entrySet()) {
+            if (entry.getValue() instanceof UnityAsset[]) {
+                conflicts.add(new Conflict(entry.getKey(), Arrays.asList((UnityAsset[]) entry.getValue())));
+            }
+        }
+        conflicts.sort((a, b) -> assetOrder.compare(a.getAssets().get(0), b.getAssets().get(0)));
+        return conflicts;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package unitypackage.model.gzip;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Places in a gzip file where decompression can be resumed without starting
+ * from the beginning (the same idea as zlib's "zran" example).
+ * Each access point is the start of a deflate block, along with the 32K of
+ * decompressed data that came before it.
+ */
+public class GzipIndex {
+
+    /**
+     * Deflate can refer back at most this many bytes.
+     */
+    public static final int WINDOW_SIZE = 32768;
+
+    /**
+     * Try not to record access points closer together than this.
+     */
+    private static final long MIN_SPAN = 1024 * 1024;
+
+    /**
+     * Each access point costs up to 32K, so when there are more than this,
+     * every other one is dropped and the span doubled.
+     */
+    private static final int MAX_ACCESS_POINTS = 512;
+
+    public static class AccessPoint {
+
+        /**
+         * Offset in the decompressed data.
+         */
+        private final long uncompressedOffset;
+
+        /**
+         * Offset in the gzip file, in bits, of the start of the deflate block.
+         */
+        private final long compressedBitOffset;
+
+        /**
+         * Up to the last 32K of decompressed data before {@link #uncompressedOffset}.
+         */
+        private final byte[] window;
+
+        public AccessPoint(long uncompressedOffset, long compressedBitOffset, byte[] window) {
+            this.uncompressedOffset = uncompressedOffset;
+            this.compressedBitOffset = compressedBitOffset;
+            this.window = window;
+        }
+
+        public long getUncompressedOffset() {
+            return uncompressedOffset;
+        }
+
+        public long getCompressedBitOffset() {
+            return compressedBitOffset;
+        }
+
+        public byte[] getWindow() {
+            return window;
+        }
+    }
+
+    private final List<AccessPoint> accessPoints;
+
+    public GzipIndex(List<AccessPoint> accessPoints) {
+        this.accessPoints = Collections.unmodifiableList(new ArrayList<>(accessPoints));
+    }
+
+    public List<AccessPoint> getAccessPoints() {
+        return accessPoints;
+    }
+
+    /**
+     * The last access point at or before the offset.
+     * Returns null if decompression has to start from the beginning of the file.
+     */
+    public AccessPoint findAccessPoint(long uncompressedOffset) {
+        int lo = 0, hi = accessPoints.size() - 1;
+        AccessPoint found = null;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            AccessPoint ap = accessPoints.get(mid);
+            if (ap.uncompressedOffset <= uncompressedOffset) {
+                found = ap;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Opens a stream of the decompressed data starting at the given offset,
+     * using the closest access point to avoid decompressing everything before it.
+     */
+    public IndexedGzipInputStream openAt(File gzipFile, long uncompressedOffset) throws IOException {
+        return openAt(gzipFile, uncompressedOffset, 0);
+    }
+
+    /**
+     * @param readAheadSize How much of the file to read at a time,
+     *                      or 0 for the decompressor's own buffer size.
+     */
+    public IndexedGzipInputStream openAt(File gzipFile, long uncompressedOffset, int readAheadSize) throws IOException {
+        AccessPoint ap = findAccessPoint(uncompressedOffset);
+
+        FileInputStream fileStream = new FileInputStream(gzipFile);
+        IndexedGzipInputStream gzipStream;
+        try {
+            if (ap != null) {
+                fileStream.getChannel().position(ap.compressedBitOffset >>> 3);
+            }
+            InputStream in = readAheadSize > 0 ? new BufferedInputStream(fileStream, readAheadSize) : fileStream;
+            if (ap == null) {
+                gzipStream = new IndexedGzipInputStream(in);
+            } else {
+                gzipStream = new IndexedGzipInputStream(in, ap);
+            }
+            gzipStream.skipFully(uncompressedOffset - gzipStream.getPosition());
+        } catch (IOException | RuntimeException ex) {
+            fileStream.close();
+            throw ex;
+        }
+        return gzipStream;
+    }
+
+    /**
+     * Collects access points while a gzip file is being read.
+     */
+    public static class Builder {
+
+        private final List<AccessPoint> accessPoints = new ArrayList<>();
+        private long span = MIN_SPAN;
+
+        /**
+         * How far apart access points should be in the decompressed data.
+         */
+        public long getSpan() {
+            return span;
+        }
+
+        public long getLastUncompressedOffset() {
+            return accessPoints.isEmpty() ? 0 : accessPoints.get(accessPoints.size() - 1).uncompressedOffset;
+        }
+
+        public void add(AccessPoint accessPoint) {
+            accessPoints.add(accessPoint);
+
+            if (accessPoints.size() > MAX_ACCESS_POINTS) {
+                // Keep every other one
+                int keep = 0;
+                for (int i = 1; i < accessPoints.size(); i += 2) {
+                    accessPoints.set(keep++, accessPoints.get(i));
+                }
+                accessPoints.subList(keep, accessPoints.size()).clear();
+                span *= 2;
+            }
+        }
+
+        public GzipIndex build() {
+            return new GzipIndex(accessPoints);
+        }
+    }
+}
@@ -0,0 +1,765 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package unitypackage.model.gzip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Pure Java gzip decoder.
+ * Works like {@link java.util.zip.GZIPInputStream}, but because it knows where
+ * every deflate block starts, it can record {@link GzipIndex.AccessPoint}s
+ * while reading, and can start decoding from one of them later.
+ * <p>
+ * {@link java.util.zip.Inflater} can't do either of those things.
+ * <p>
+ * Inflating is around 1.2 to 1.4 times slower than {@link java.util.zip.GZIPInputStream}'s
+ * native zlib, so the first read of a package is slower, in exchange for being
+ * able to seek and decompress in parallel afterwards.
+ */
+public class IndexedGzipInputStream extends InputStream {
+
+    // Deflate tables (RFC 1951)
+    private static final int[] LENGTH_BASE = {
+        3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+        35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+    private static final int[] LENGTH_EXTRA = {
+        0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+        3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+    private static final int[] DISTANCE_BASE = {
+        1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+        257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145,
+        8193, 12289, 16385, 24577};
+    private static final int[] DISTANCE_EXTRA = {
+        0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+        7, 7, 8, 8, 9, 9, 10, 10, 11, 11,
+        12, 12, 13, 13};
+    /** Order the code length code lengths are stored in a dynamic block header. */
+    private static final int[] CODE_LENGTH_ORDER = {
+        16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+    private static final int MAX_BITS = 15;
+    private static final int MAX_MATCH = 258;
+
+    private static final HuffmanTable FIXED_LITERALS = new HuffmanTable(288);
+    private static final HuffmanTable FIXED_DISTANCES = new HuffmanTable(30);
+    static {
+        byte[] lengths = new byte[288];
+        Arrays.fill(lengths, 0, 144, (byte) 8);
+        Arrays.fill(lengths, 144, 256, (byte) 9);
+        Arrays.fill(lengths, 256, 280, (byte) 7);
+        Arrays.fill(lengths, 280, 288, (byte) 8);
+        byte[] distances = new byte[30];
+        Arrays.fill(distances, (byte) 5);
+        try {
+            FIXED_LITERALS.build(lengths, 0, 288);
+            FIXED_DISTANCES.build(distances, 0, 30);
+        } catch (ZipException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private static final int MODE_MEMBER_HEADER = 0;
+    private static final int MODE_BLOCK_HEADER = 1;
+    private static final int MODE_STORED = 2;
+    private static final int MODE_CODES = 3;
+    private static final int MODE_MEMBER_TRAILER = 4;
+    private static final int MODE_DONE = 5;
+
+    /**
+     * Canonical Huffman decoding table.
+     * Codes up to {@link #FAST_BITS} long are found with one lookup,
+     * the rare longer ones are decoded a bit at a time.
+     */
+    private static class HuffmanTable {
+        static final int FAST_BITS = 10;
+        static final int FAST_MASK = (1 << FAST_BITS) - 1;
+
+        /** (symbol << 4) | code length, or 0 if the code is longer than {@link #FAST_BITS}. */
+        final int[] fast = new int[1 << FAST_BITS];
+        final short[] count = new short[MAX_BITS + 1];
+        final short[] symbol;
+        private final int[] nextCode = new int[MAX_BITS + 2];
+
+        HuffmanTable(int maxSymbols) {
+            symbol = new short[maxSymbols];
+        }
+
+        void build(byte[] lengths, int offset, int symbolCount) throws ZipException {
+            Arrays.fill(count, (short) 0);
+            for (int i = 0; i < symbolCount; i++) {
+                count[lengths[offset + i]]++;
+            }
+            count[0] = 0;
+
+            int left = 1;
+            for (int len = 1; len <= MAX_BITS; len++) {
+                left <<= 1;
+                left -= count[len];
+                if (left < 0) {
+                    throw new ZipException("Over-subscribed Huffman code");
+                }
+            }
+
+            // Symbols sorted by code length, for the slow path
+            nextCode[1] = 0;
+            for (int len = 1; len < MAX_BITS; len++) {
+                nextCode[len + 1] = nextCode[len] + count[len];
+            }
+            for (int i = 0; i < symbolCount; i++) {
+                int len = lengths[offset + i];
+                if (len != 0) {
+                    symbol[nextCode[len]++] = (short) i;
+                }
+            }
+
+            // Lookup table for the fast path
+            Arrays.fill(fast, 0);
+            int code = 0;
+            for (int len = 1; len <= MAX_BITS; len++) {
+                code = (code + count[len - 1]) << 1;
+                nextCode[len] = code;
+            }
+            for (int i = 0; i < symbolCount; i++) {
+                int len = lengths[offset + i];
+                if (len == 0 || len > FAST_BITS) {
+                    continue;
+                }
+                int reversed = Integer.reverse(nextCode[len]++) >>> (32 - len);
+                int entry = (i << 4) | len;
+                for (int j = reversed; j <= FAST_MASK; j += 1 << len) {
+                    fast[j] = entry;
+                }
+            }
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] inBuffer = new byte[64 * 1024];
+    private int inPos, inLength;
+    /** Offset in the file of {@link #inBuffer}[0]. */
+    private long inBufferFileOffset;
+    private boolean inEof;
+
+    private long bitBuffer;
+    private int bitCount;
+    /** Number of zero bytes put in the bit buffer after hitting the end of the input. */
+    private int padBytes;
+
+    private static final int RING_SIZE = 64 * 1024;
+    private static final int RING_MASK = RING_SIZE - 1;
+    private final byte[] ring = new byte[RING_SIZE];
+    /** How much has been decompressed. */
+    private long outPos;
+    /** How much has been returned to the reader. */
+    private long readPos;
+    /** Oldest decompressed data that matches can refer to. */
+    private long historyStart;
+
+    private int mode;
+    private boolean lastBlock;
+    private int storedRemaining;
+    private final HuffmanTable dynamicLiterals = new HuffmanTable(288);
+    private final HuffmanTable dynamicDistances = new HuffmanTable(30);
+    private final byte[] codeLengths = new byte[288 + 32];
+    private final HuffmanTable codeLengthTable = new HuffmanTable(19);
+    private HuffmanTable literals, distances;
+
+    private final CRC32 crc = new CRC32();
+    /** CRC can only be checked when the whole member was decompressed. */
+    private boolean checkCrc;
+    private long memberStart;
+
+    private final GzipIndex.Builder indexBuilder;
+
+    public IndexedGzipInputStream(InputStream in) {
+        this(in, (GzipIndex.Builder) null);
+    }
+
+    /**
+     * @param indexBuilder If not null, will receive access points as the stream is read.
+     */
+    public IndexedGzipInputStream(InputStream in, GzipIndex.Builder indexBuilder) {
+        this.in = in;
+        this.indexBuilder = indexBuilder;
+        mode = MODE_MEMBER_HEADER;
+    }
+
+    /**
+     * Resume decompression from an access point.
+     * @param in Must be positioned at the byte containing {@link GzipIndex.AccessPoint#getCompressedBitOffset()}.
+     */
+    public IndexedGzipInputStream(InputStream in, GzipIndex.AccessPoint accessPoint) throws IOException {
+        this.in = in;
+        this.indexBuilder = null;
+
+        long bitOffset = accessPoint.getCompressedBitOffset();
+        inBufferFileOffset = bitOffset >>> 3;
+        int skipBits = (int) (bitOffset & 7);
+        if (skipBits != 0) {
+            need(8);
+            dropBits(skipBits);
+        }
+
+        byte[] window = accessPoint.getWindow();
+        outPos = readPos = accessPoint.getUncompressedOffset();
+        historyStart = outPos - window.length;
+        for (int i = 0; i < window.length; i++) {
+            ring[(int) (historyStart + i) & RING_MASK] = window[i];
+        }
+
+        mode = MODE_BLOCK_HEADER;
+        checkCrc = false;
+    }
+
+    /**
+     * Offset in the decompressed data of the next byte that will be read.
+     */
+    public long getPosition() {
+        return readPos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (readPos == outPos) {
+            if (mode == MODE_DONE) {
+                return -1;
+            }
+            fill();
+        }
+        return ring[(int) readPos++ & RING_MASK] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (readPos == outPos) {
+            if (mode == MODE_DONE) {
+                return -1;
+            }
+            fill();
+        }
+        int n = (int) Math.min(len, outPos - readPos);
+        int start = (int) readPos & RING_MASK;
+        int first = Math.min(n, RING_SIZE - start);
+        System.arraycopy(ring, start, b, off, first);
+        if (n > first) {
+            System.arraycopy(ring, 0, b, off + first, n - first);
+        }
+        readPos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (readPos == outPos) {
+                if (mode == MODE_DONE) {
+                    break;
+                }
+                fill();
+            }
+            long step = Math.min(n - skipped, outPos - readPos);
+            readPos += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    /**
+     * Like {@link #skip(long)} but throws if the end is reached first.
+     */
+    public void skipFully(long n) throws IOException {
+        if (skip(n) != n) {
+            throw new EOFException("Unexpected end of gzip data");
+        }
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, outPos - readPos);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mode = MODE_DONE;
+        in.close();
+    }
+
+    // ===================================================================================
+    // Decoding
+
+    /**
+     * Decompress as much as fits in the ring buffer.
+     */
+    private void fill() throws IOException {
+        while (mode != MODE_DONE && outPos - readPos <= RING_SIZE - MAX_MATCH) {
+            switch (mode) {
+                case MODE_MEMBER_HEADER:
+                    readMemberHeader();
+                    break;
+                case MODE_BLOCK_HEADER:
+                    if (indexBuilder != null && outPos - indexBuilder.getLastUncompressedOffset() >= indexBuilder.getSpan()) {
+                        addAccessPoint();
+                    }
+                    readBlockHeader();
+                    break;
+                case MODE_STORED:
+                    copyStored();
+                    break;
+                case MODE_CODES:
+                    decodeCodes();
+                    break;
+                case MODE_MEMBER_TRAILER:
+                    readMemberTrailer();
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+    }
+
+    private void addAccessPoint() {
+        int windowLength = (int) Math.min(GzipIndex.WINDOW_SIZE, outPos - historyStart);
+        byte[] window = new byte[windowLength];
+        long start = outPos - windowLength;
+        for (int i = 0; i < windowLength; i++) {
+            window[i] = ring[(int) (start + i) & RING_MASK];
+        }
+        indexBuilder.add(new GzipIndex.AccessPoint(outPos, getCompressedBitOffset(), window));
+    }
+
+    private long getCompressedBitOffset() {
+        return (inBufferFileOffset + inPos) * 8 - (bitCount - padBytes * 8);
+    }
+
+    private void readMemberHeader() throws IOException {
+        if (readByte() != 0x1f || readByte() != 0x8b) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (readByte() != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        int flags = readByte();
+        for (int i = 0; i < 6; i++) { // MTIME, XFL, OS
+            readByte();
+        }
+        if ((flags & 4) != 0) { // FEXTRA
+            int extraLength = readByte() | (readByte() << 8);
+            for (int i = 0; i < extraLength; i++) {
+                readByte();
+            }
+        }
+        if ((flags & 8) != 0) { // FNAME
+            while (readByte() != 0) { }
+        }
+        if ((flags & 16) != 0) { // FCOMMENT
+            while (readByte() != 0) { }
+        }
+        if ((flags & 2) != 0) { // FHCRC
+            readByte();
+            readByte();
+        }
+        checkEof();
+
+        crc.reset();
+        checkCrc = true;
+        memberStart = outPos;
+        mode = MODE_BLOCK_HEADER;
+    }
+
+    private void readMemberTrailer() throws IOException {
+        dropBits(bitCount & 7);
+        long expectedCrc = readByte() | (readByte() << 8) | (readByte() << 16) | ((long) readByte() << 24);
+        long expectedSize = readByte() | (readByte() << 8) | (readByte() << 16) | ((long) readByte() << 24);
+        checkEof();
+        if (checkCrc) {
+            if (expectedCrc != crc.getValue()) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+            if (expectedSize != ((outPos - memberStart) & 0xffffffffL)) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+        }
+
+        // Is there another gzip member concatenated after this one?
+        if (!hasMoreInput()) {
+            mode = MODE_DONE;
+            return;
+        }
+        need(16);
+        if ((bitBuffer & 0xffff) != 0x8b1f || padBytes > 0) {
+            // Ignore trailing garbage like GZIPInputStream does
+            mode = MODE_DONE;
+            return;
+        }
+        mode = MODE_MEMBER_HEADER;
+    }
+
+    private void readBlockHeader() throws IOException {
+        need(3);
+        lastBlock = (bitBuffer & 1) != 0;
+        int type = (int) (bitBuffer >>> 1) & 3;
+        dropBits(3);
+
+        switch (type) {
+            case 0:
+                dropBits(bitCount & 7);
+                need(32);
+                int length = (int) bitBuffer & 0xffff;
+                int lengthComplement = (int) (bitBuffer >>> 16) & 0xffff;
+                dropBits(32);
+                if (length != (~lengthComplement & 0xffff)) {
+                    throw new ZipException("Invalid stored block lengths");
+                }
+                checkEof();
+                storedRemaining = length;
+                mode = MODE_STORED;
+                break;
+            case 1:
+                literals = FIXED_LITERALS;
+                distances = FIXED_DISTANCES;
+                mode = MODE_CODES;
+                break;
+            case 2:
+                readDynamicTables();
+                literals = dynamicLiterals;
+                distances = dynamicDistances;
+                mode = MODE_CODES;
+                break;
+            default:
+                throw new ZipException("Invalid block type");
+        }
+    }
+
+    private void endOfBlock() {
+        mode = lastBlock ? MODE_MEMBER_TRAILER : MODE_BLOCK_HEADER;
+    }
+
+    private void readDynamicTables() throws IOException {
+        need(14);
+        int literalCount = ((int) bitBuffer & 0x1f) + 257;
+        int distanceCount = ((int) (bitBuffer >>> 5) & 0x1f) + 1;
+        int codeLengthCount = ((int) (bitBuffer >>> 10) & 0xf) + 4;
+        dropBits(14);
+        if (literalCount > 286 || distanceCount > 30) {
+            throw new ZipException("Too many length or distance symbols");
+        }
+
+        Arrays.fill(codeLengths, 0, 19, (byte) 0);
+        for (int i = 0; i < codeLengthCount; i++) {
+            need(3);
+            codeLengths[CODE_LENGTH_ORDER[i]] = (byte) (bitBuffer & 7);
+            dropBits(3);
+        }
+        codeLengthTable.build(codeLengths, 0, 19);
+
+        int total = literalCount + distanceCount;
+        int index = 0;
+        while (index < total) {
+            need(MAX_BITS + 7);
+            int symbol = decodeSymbol(codeLengthTable);
+            if (symbol < 16) {
+                codeLengths[index++] = (byte) symbol;
+                continue;
+            }
+            int repeatLength;
+            int repeat;
+            if (symbol == 16) {
+                if (index == 0) {
+                    throw new ZipException("Repeat with no first length");
+                }
+                repeatLength = codeLengths[index - 1];
+                repeat = 3 + ((int) bitBuffer & 3);
+                dropBits(2);
+            } else if (symbol == 17) {
+                repeatLength = 0;
+                repeat = 3 + ((int) bitBuffer & 7);
+                dropBits(3);
+            } else {
+                repeatLength = 0;
+                repeat = 11 + ((int) bitBuffer & 0x7f);
+                dropBits(7);
+            }
+            if (index + repeat > total) {
+                throw new ZipException("Too many code lengths");
+            }
+            Arrays.fill(codeLengths, index, index + repeat, (byte) repeatLength);
+            index += repeat;
+        }
+        checkEof();
+
+        if (codeLengths[256] == 0) {
+            throw new ZipException("Missing end-of-block code");
+        }
+        dynamicLiterals.build(codeLengths, 0, literalCount);
+        dynamicDistances.build(codeLengths, literalCount, distanceCount);
+    }
+
+    private void copyStored() throws IOException {
+        long start = outPos;
+        int space = (int) (RING_SIZE - (outPos - readPos));
+        int toCopy = Math.min(storedRemaining, space);
+
+        // First whatever is left in the bit buffer
+        while (toCopy > 0 && bitCount >= 8 + padBytes * 8) {
+            ring[(int) outPos++ & RING_MASK] = (byte) bitBuffer;
+            dropBits(8);
+            toCopy--;
+            storedRemaining--;
+        }
+        while (toCopy > 0) {
+            if (inPos == inLength && !fillInput()) {
+                throw new EOFException("Unexpected end of gzip data");
+            }
+            int ringPos = (int) outPos & RING_MASK;
+            int n = Math.min(Math.min(toCopy, inLength - inPos), RING_SIZE - ringPos);
+            System.arraycopy(inBuffer, inPos, ring, ringPos, n);
+            inPos += n;
+            outPos += n;
+            toCopy -= n;
+            storedRemaining -= n;
+        }
+        updateCrc(start);
+
+        if (storedRemaining == 0) {
+            endOfBlock();
+        }
+    }
+
+    private void decodeCodes() throws IOException {
+        final byte[] ring = this.ring;
+        final HuffmanTable literals = this.literals;
+        final HuffmanTable distances = this.distances;
+        final long start = outPos;
+        final long limit = readPos + RING_SIZE - MAX_MATCH;
+        long out = outPos;
+
+        try {
+            while (out <= limit) {
+                // Enough bits for the longest literal/length + distance codes with extra bits
+                if (bitCount < 48) {
+                    refill();
+                }
+
+                int symbol;
+                int entry = literals.fast[(int) bitBuffer & HuffmanTable.FAST_MASK];
+                if (entry != 0) {
+                    int len = entry & 0xf;
+                    bitBuffer >>>= len;
+                    bitCount -= len;
+                    symbol = entry >>> 4;
+                } else {
+                    symbol = decodeSlow(literals);
+                }
+
+                if (symbol < 256) {
+                    ring[(int) out & RING_MASK] = (byte) symbol;
+                    out++;
+                    continue;
+                }
+                if (symbol == 256) {
+                    checkEof();
+                    endOfBlock();
+                    break;
+                }
+
+                symbol -= 257;
+                if (symbol >= 29) {
+                    throw new ZipException("Invalid literal/length code");
+                }
+                int extra = LENGTH_EXTRA[symbol];
+                int length = LENGTH_BASE[symbol] + ((int) bitBuffer & ((1 << extra) - 1));
+                bitBuffer >>>= extra;
+                bitCount -= extra;
+
+                entry = distances.fast[(int) bitBuffer & HuffmanTable.FAST_MASK];
+                if (entry != 0) {
+                    int len = entry & 0xf;
+                    bitBuffer >>>= len;
+                    bitCount -= len;
+                    symbol = entry >>> 4;
+                } else {
+                    symbol = decodeSlow(distances);
+                }
+                if (symbol >= 30) {
+                    throw new ZipException("Invalid distance code");
+                }
+                extra = DISTANCE_EXTRA[symbol];
+                int distance = DISTANCE_BASE[symbol] + ((int) bitBuffer & ((1 << extra) - 1));
+                bitBuffer >>>= extra;
+                bitCount -= extra;
+
+                if (distance > out - historyStart) {
+                    throw new ZipException("Invalid distance too far back");
+                }
+
+                int to = (int) out & RING_MASK;
+                int from = (int) (out - distance) & RING_MASK;
+                if (to + length <= RING_SIZE && from + length <= RING_SIZE) {
+                    // Doesn't wrap around the ring, so can skip the masking
+                    if (distance >= length) {
+                        System.arraycopy(ring, from, ring, to, length);
+                    } else {
+                        // Overlapping copy repeats the earlier bytes
+                        for (int i = 0; i < length; i++) {
+                            ring[to + i] = ring[from + i];
+                        }
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        ring[(to + i) & RING_MASK] = ring[(from + i) & RING_MASK];
+                    }
+                }
+                out += length;
+            }
+        } finally {
+            outPos = out;
+        }
+        updateCrc(start);
+    }
+
+    private int decodeSymbol(HuffmanTable table) throws ZipException {
+        int entry = table.fast[(int) bitBuffer & HuffmanTable.FAST_MASK];
+        if (entry != 0) {
+            dropBits(entry & 0xf);
+            return entry >>> 4;
+        }
+        return decodeSlow(table);
+    }
+
+    /**
+     * Decode a bit at a time (from zlib's "puff").
+     * Assumes at least {@link #MAX_BITS} bits are in the bit buffer.
+     */
+    private int decodeSlow(HuffmanTable table) throws ZipException {
+        int code = 0;
+        int first = 0;
+        int index = 0;
+        for (int len = 1; len <= MAX_BITS; len++) {
+            code |= (int) bitBuffer & 1;
+            dropBits(1);
+            int count = table.count[len];
+            if (code - count < first) {
+                return table.symbol[index + (code - first)];
+            }
+            index += count;
+            first += count;
+            first <<= 1;
+            code <<= 1;
+        }
+        throw new ZipException("Invalid Huffman code");
+    }
+
+    private void updateCrc(long start) {
+        int from = (int) start & RING_MASK;
+        int length = (int) (outPos - start);
+        int first = Math.min(length, RING_SIZE - from);
+        crc.update(ring, from, first);
+        if (length > first) {
+            crc.update(ring, 0, length - first);
+        }
+    }
+
+    // ===================================================================================
+    // Bit input
+
+    private void dropBits(int n) {
+        bitBuffer >>>= n;
+        bitCount -= n;
+    }
+
+    private int readByte() throws IOException {
+        need(8);
+        int b = (int) bitBuffer & 0xff;
+        dropBits(8);
+        return b;
+    }
+
+    /**
+     * Make sure the bit buffer has at least n bits (n &lt;= 57, so the last byte
+     * added still fits in the 64 bit buffer).
+     */
+    private void need(int n) throws IOException {
+        while (bitCount < n) {
+            int b;
+            if (inPos == inLength && !fillInput()) {
+                b = 0;
+                if (++padBytes > 16) {
+                    throw new EOFException("Unexpected end of gzip data");
+                }
+            } else {
+                b = inBuffer[inPos++] & 0xff;
+            }
+            bitBuffer |= (long) b << bitCount;
+            bitCount += 8;
+        }
+    }
+
+    private void refill() throws IOException {
+        if (inLength - inPos >= 8) {
+            while (bitCount <= 56) {
+                bitBuffer |= (long) (inBuffer[inPos++] & 0xff) << bitCount;
+                bitCount += 8;
+            }
+        } else {
+            need(57);
+        }
+    }
+
+    /**
+     * Throws if more bits have been used than were actually in the input.
+     */
+    private void checkEof() throws EOFException {
+        if (padBytes * 8 > bitCount) {
+            throw new EOFException("Unexpected end of gzip data");
+        }
+    }
+
+    private boolean hasMoreInput() throws IOException {
+        if (bitCount - padBytes * 8 >= 8) {
+            return true;
+        }
+        return inPos < inLength || fillInput();
+    }
+
+    private boolean fillInput() throws IOException {
+        if (inEof) {
+            return false;
+        }
+        inBufferFileOffset += inLength;
+        inPos = 0;
+        inLength = 0;
+        int n;
+        while ((n = in.read(inBuffer, 0, inBuffer.length)) == 0) { }
+        if (n < 0) {
+            inEof = true;
+            return false;
+        }
+        inLength = n;
+        return true;
+    }
+}
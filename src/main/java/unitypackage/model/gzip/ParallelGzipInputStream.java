@@ -0,0 +1,240 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package unitypackage.model.gzip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decompresses a gzip file using several threads.
+ * The stretches between the access points in a {@link GzipIndex} are
+ * independent of each other, so each thread decompresses a different one,
+ * and they are returned in order.
+ * <p>
+ * The segments waiting to be read are held in memory, up to a limit in bytes,
+ * since the access points get further apart in bigger files.
+ * <p>
+ * Since no thread sees a whole gzip member, the CRC is not checked.
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 128 * 1024 * 1024;
+
+    private final File gzipFile;
+    private final List<GzipIndex.AccessPoint> accessPoints;
+    private final ExecutorService executor;
+    private final int maxSegmentsInFlight;
+    private final long maxBufferedBytes;
+
+    /** Segment i goes from access point i-1 (or the start of the file) to access point i (or the end). */
+    private int nextSegmentToSubmit;
+    private final ArrayDeque<Future<byte[]>> segmentsInFlight = new ArrayDeque<>();
+    /** Sizes of the segments in flight, in the same order. */
+    private final ArrayDeque<Long> segmentSizesInFlight = new ArrayDeque<>();
+    private long bytesInFlight;
+
+    private byte[] currentSegment = new byte[0];
+    private int currentPos;
+    private boolean closed;
+
+    /**
+     * @param threads How many segments to decompress at the same time.
+     */
+    public ParallelGzipInputStream(File gzipFile, GzipIndex gzipIndex, int threads) {
+        this(gzipFile, gzipIndex, threads, DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    /**
+     * @param threads How many segments to decompress at the same time.
+     * @param maxBufferedBytes Most decompressed data to hold in segments waiting to be read.
+     *                         There's always at least one segment in flight, however big.
+     */
+    public ParallelGzipInputStream(File gzipFile, GzipIndex gzipIndex, int threads, long maxBufferedBytes) {
+        this.gzipFile = gzipFile;
+        this.accessPoints = gzipIndex.getAccessPoints();
+        this.maxSegmentsInFlight = threads * 2;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "gzip-segment");
+            thread.setDaemon(true);
+            return thread;
+        });
+        submitSegments();
+    }
+
+    private int getSegmentCount() {
+        return accessPoints.size() + 1;
+    }
+
+    private void submitSegments() {
+        while (segmentsInFlight.size() < maxSegmentsInFlight && nextSegmentToSubmit < getSegmentCount()) {
+            long size = getSegmentSize(nextSegmentToSubmit);
+            if (!segmentsInFlight.isEmpty() && bytesInFlight + size > maxBufferedBytes) {
+                break;
+            }
+            final int segment = nextSegmentToSubmit++;
+            segmentsInFlight.add(executor.submit(() -> decompressSegment(segment)));
+            segmentSizesInFlight.add(size);
+            bytesInFlight += size;
+        }
+    }
+
+    /**
+     * The size of the last segment isn't known, but it's no bigger than the spacing
+     * of the access points, so it's guessed to be the same as the one before it.
+     */
+    private long getSegmentSize(int segment) {
+        if (accessPoints.isEmpty()) {
+            return 0;
+        }
+        int knownSegment = Math.min(segment, accessPoints.size() - 1);
+        long start = knownSegment == 0 ? 0 : accessPoints.get(knownSegment - 1).getUncompressedOffset();
+        return accessPoints.get(knownSegment).getUncompressedOffset() - start;
+    }
+
+    private byte[] decompressSegment(int segment) throws IOException {
+        GzipIndex.AccessPoint start = segment == 0 ? null : accessPoints.get(segment - 1);
+        GzipIndex.AccessPoint end = segment == accessPoints.size() ? null : accessPoints.get(segment);
+
+        try (FileInputStream fileStream = new FileInputStream(gzipFile)) {
+            IndexedGzipInputStream gzipStream;
+            if (start == null) {
+                gzipStream = new IndexedGzipInputStream(fileStream);
+            } else {
+                fileStream.getChannel().position(start.getCompressedBitOffset() >>> 3);
+                gzipStream = new IndexedGzipInputStream(fileStream, start);
+            }
+
+            if (end != null) {
+                long startOffset = start == null ? 0 : start.getUncompressedOffset();
+                byte[] data = new byte[Math.toIntExact(end.getUncompressedOffset() - startOffset)];
+                int pos = 0;
+                while (pos < data.length) {
+                    int read = gzipStream.read(data, pos, data.length - pos);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of gzip data");
+                    }
+                    pos += read;
+                }
+                return data;
+            } else {
+                // Last segment, read until the end
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = gzipStream.read(buffer)) > 0) {
+                    data.write(buffer, 0, read);
+                }
+                return data.toByteArray();
+            }
+        }
+    }
+
+    /**
+     * Moves to the next segment with data.
+     * Returns false at the end of the stream.
+     */
+    private boolean nextSegment() throws IOException {
+        while (currentPos == currentSegment.length) {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            Future<byte[]> next = segmentsInFlight.poll();
+            if (next == null) {
+                return false;
+            }
+            bytesInFlight -= segmentSizesInFlight.remove();
+            try {
+                currentSegment = next.get();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            }
+            currentPos = 0;
+            submitSegments();
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextSegment()) {
+            return -1;
+        }
+        return currentSegment[currentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextSegment()) {
+            return -1;
+        }
+        int n = Math.min(len, currentSegment.length - currentPos);
+        System.arraycopy(currentSegment, currentPos, b, off, n);
+        currentPos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && nextSegment()) {
+            int step = (int) Math.min(n - skipped, currentSegment.length - currentPos);
+            currentPos += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return currentSegment.length - currentPos;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            for (Future<byte[]> future : segmentsInFlight) {
+                future.cancel(true);
+            }
+            segmentsInFlight.clear();
+            segmentSizesInFlight.clear();
+            executor.shutdownNow();
+        }
+    }
+}
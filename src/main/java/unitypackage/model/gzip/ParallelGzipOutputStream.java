@@ -0,0 +1,244 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.model.gzip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses to gzip using several threads, the same way as pigz.
+ * The data is cut into blocks that are compressed at the same time,
+ * each one using the end of the block before it as its dictionary so
+ * compression is nearly as good as a single stream. Each block ends on
+ * a byte boundary (a sync flush), so the compressed blocks are simply
+ * written one after the other as one gzip member.
+ * <p>
+ * {@link #flush()} only writes the blocks that are already full.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    private static final int BLOCK_SIZE = 128 * 1024;
+    /** Deflate can refer back up to 32K. */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte[] HEADER = {
+        0x1f, (byte) 0x8b, // Magic
+        Deflater.DEFLATED, // Compression method
+        0,                 // Flags
+        0, 0, 0, 0,        // Modification time
+        0,                 // Extra flags
+        (byte) 0xff,       // OS unknown
+    };
+
+    private final OutputStream out;
+    private final int level;
+    private final ExecutorService executor;
+    private final int maxBlocksInFlight;
+    private final ArrayDeque<Future<byte[]>> blocksInFlight = new ArrayDeque<>();
+
+    /** Each thread keeps its own, since they're slow to make. */
+    private final ThreadLocal<Deflater> deflaters;
+    private final List<Deflater> allDeflaters = new ArrayList<>();
+
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength;
+    /** End of the block before the current one, null for the first block. */
+    private byte[] dictionary;
+
+    private final CRC32 crc = new CRC32();
+    private long uncompressedSize;
+    private boolean finished;
+
+    /**
+     * @param threads How many blocks to compress at the same time.
+     * @param level   {@link Deflater} compression level.
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads, int level) throws IOException {
+        this.out = out;
+        this.level = level;
+        this.maxBlocksInFlight = threads * 2;
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "gzip-deflate");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.deflaters = ThreadLocal.withInitial(() -> {
+            Deflater deflater = new Deflater(this.level, true);
+            synchronized (allDeflaters) {
+                allDeflaters.add(deflater);
+            }
+            return deflater;
+        });
+        out.write(HEADER);
+    }
+
+    public ParallelGzipOutputStream(OutputStream out, int threads) throws IOException {
+        this(out, threads, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Stream finished");
+        }
+        crc.update(b, off, len);
+        uncompressedSize += len;
+        while (len > 0) {
+            int n = Math.min(len, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == BLOCK_SIZE) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        final byte[] data = block;
+        final int length = blockLength;
+        final byte[] blockDictionary = dictionary;
+        blocksInFlight.add(executor.submit(() -> deflateBlock(data, length, blockDictionary, last)));
+
+        if (!last) {
+            dictionary = Arrays.copyOfRange(data, length - DICTIONARY_SIZE, length);
+            block = new byte[BLOCK_SIZE];
+            blockLength = 0;
+        }
+
+        while (blocksInFlight.size() >= maxBlocksInFlight) {
+            writeNextBlock();
+        }
+    }
+
+    private byte[] deflateBlock(byte[] data, int length, byte[] blockDictionary, boolean last) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        if (blockDictionary != null) {
+            deflater.setDictionary(blockDictionary);
+        }
+        deflater.setInput(data, 0, length);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+        byte[] buffer = new byte[64 * 1024];
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                compressed.write(buffer, 0, n);
+            }
+        } else {
+            int n;
+            do {
+                // Ends the block on a byte boundary so the next one can be appended
+                n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, n);
+            } while (n == buffer.length);
+        }
+        return compressed.toByteArray();
+    }
+
+    private void writeNextBlock() throws IOException {
+        Future<byte[]> next = blocksInFlight.poll();
+        try {
+            out.write(next.get());
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        while (!blocksInFlight.isEmpty() && blocksInFlight.peek().isDone()) {
+            writeNextBlock();
+        }
+        out.flush();
+    }
+
+    /**
+     * Compresses the rest and writes the gzip trailer, without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        submitBlock(true);
+        finished = true;
+        while (!blocksInFlight.isEmpty()) {
+            writeNextBlock();
+        }
+
+        byte[] trailer = new byte[8];
+        writeIntLE(trailer, 0, crc.getValue());
+        writeIntLE(trailer, 4, uncompressedSize);
+        out.write(trailer);
+    }
+
+    private static void writeIntLE(byte[] b, int offset, long value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >> 8);
+        b[offset + 2] = (byte) (value >> 16);
+        b[offset + 3] = (byte) (value >> 24);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            for (Future<byte[]> future : blocksInFlight) {
+                future.cancel(true);
+            }
+            blocksInFlight.clear();
+            executor.shutdownNow();
+            synchronized (allDeflaters) {
+                for (Deflater deflater : allDeflaters) {
+                    deflater.end();
+                }
+                allDeflaters.clear();
+            }
+            out.close();
+        }
+    }
+}
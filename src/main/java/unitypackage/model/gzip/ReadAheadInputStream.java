@@ -0,0 +1,200 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package unitypackage.model.gzip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the wrapped stream on a background thread, a chunk at a time,
+ * so decompression can happen at the same time as whatever is
+ * done with the decompressed data.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_CHUNKS_AHEAD = 4;
+
+    /** Put in the queue after the last chunk. */
+    private static final Chunk END = new Chunk(new byte[0], 0, null);
+
+    private static class Chunk {
+        final byte[] data;
+        final int length;
+        /** Whatever stopped the reading thread, to be thrown on the reading side. */
+        final Throwable error;
+
+        Chunk(byte[] data, int length, Throwable error) {
+            this.data = data;
+            this.length = length;
+            this.error = error;
+        }
+    }
+
+    private final InputStream in;
+    private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(MAX_CHUNKS_AHEAD);
+    private final Thread readerThread;
+    private volatile boolean closed;
+
+    private Chunk current = new Chunk(new byte[0], 0, null);
+    private int currentPos;
+    private boolean atEnd;
+    private long position;
+
+    public ReadAheadInputStream(InputStream in) {
+        this.in = in;
+        readerThread = new Thread(this::readChunks, "read-ahead");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    private void readChunks() {
+        try {
+            while (!closed) {
+                byte[] data = new byte[CHUNK_SIZE];
+                int length = 0;
+                int read = 0;
+                while (length < CHUNK_SIZE && (read = in.read(data, length, CHUNK_SIZE - length)) >= 0) {
+                    length += read;
+                }
+                if (length > 0) {
+                    chunks.put(new Chunk(data, length, null));
+                }
+                if (read < 0) {
+                    chunks.put(END);
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            // closed
+        } catch (Throwable ex) {
+            // Anything at all, or the reader would wait forever for the next chunk
+            try {
+                chunks.put(new Chunk(null, 0, ex));
+            } catch (InterruptedException ie) {
+                // closed
+            }
+        }
+    }
+
+    /**
+     * How many bytes have been returned from this stream.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns false at the end of the stream.
+     */
+    private boolean nextChunk() throws IOException {
+        while (currentPos == current.length) {
+            if (atEnd) {
+                return false;
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            try {
+                current = chunks.take();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+            currentPos = 0;
+            if (current.error != null) {
+                throwError(current.error);
+            }
+            if (current == END) {
+                atEnd = true;
+            }
+        }
+        return true;
+    }
+
+    private static void throwError(Throwable error) throws IOException {
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        throw new IOException(error);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        position++;
+        return current.data[currentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current.data, currentPos, b, off, n);
+        currentPos += n;
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && nextChunk()) {
+            int step = (int) Math.min(n - skipped, current.length - currentPos);
+            currentPos += step;
+            skipped += step;
+        }
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return current.length - currentPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            readerThread.interrupt();
+            try {
+                readerThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            in.close();
+        }
+    }
+}
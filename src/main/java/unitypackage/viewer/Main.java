@@ -21,15 +21,18 @@
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Properties;
+import unitypackage.model.ContentIndex;
+import unitypackage.model.Metrics;
+import unitypackage.model.ParallelExtractor;
 import unitypackage.model.UnityArchiveInputStream;
 import unitypackage.model.UnityAsset;
 import unitypackage.model.UnityPackage;
+import unitypackage.model.UnityPackageIndexCache;
+import unitypackage.viewer.cli.BatchCommand;
 import unitypackage.viewer.gui.MainWindow;
 
 public class Main {
@@ -39,6 +42,15 @@ public class Main {
     public static String VERSION = DEVELOPMENT_VERSION;
 
     private static final String EXTRACT_ALL_COMMAND = "--extract-all";
+    private static final String THREADS_OPTION = "--threads";
+    private static final String SEARCH_CONTENTS_COMMAND = "--search-contents";
+    private static final String STATS_OPTION = "--stats";
+
+    /**
+     * Writing files is mostly waiting on the file system, so use a few threads even on small machines.
+     */
+    private static final int DEFAULT_WRITER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final long MAX_BUFFERED_BYTES = 256 * 1024 * 1024;
 
     /**
      * Looks for the file {@link #VERSION_PROPERTY_FILE} that should have been filtered
@@ -66,10 +78,39 @@ public static void main(String[] args) throws IOException {
 
         initVersion();
 
+        if (args.length > 0 && BatchCommand.isCommand(args[0])) {
+            System.exit(BatchCommand.run(args));
+        }
+
         ArrayList<String> argsList = new ArrayList<>(Arrays.asList(args));
 
         boolean hasExtractAllCommand = false;
         String fileToOpen = null;
+        int writerThreads = DEFAULT_WRITER_THREADS;
+
+        int threadsIndex = argsList.indexOf(THREADS_OPTION);
+        if (threadsIndex >= 0) {
+            argsList.remove(threadsIndex);
+            try {
+                writerThreads = Integer.parseInt(argsList.remove(threadsIndex));
+            } catch (IndexOutOfBoundsException | NumberFormatException ex) {
+                System.out.println(THREADS_OPTION + " expects a number of threads");
+                System.exit(1);
+            }
+        }
+
+        boolean printStats = argsList.remove(STATS_OPTION);
+
+        String contentQuery = null;
+        int searchIndex = argsList.indexOf(SEARCH_CONTENTS_COMMAND);
+        if (searchIndex >= 0) {
+            argsList.remove(searchIndex);
+            if (searchIndex >= argsList.size()) {
+                System.out.println(SEARCH_CONTENTS_COMMAND + " expects the words to search for");
+                System.exit(1);
+            }
+            contentQuery = argsList.remove(searchIndex);
+        }
 
         if (!argsList.isEmpty()) {
             hasExtractAllCommand = argsList.remove(EXTRACT_ALL_COMMAND);
@@ -78,33 +119,57 @@ public static void main(String[] args) throws IOException {
             }
         }
 
-        if (hasExtractAllCommand) {
+        if (contentQuery != null) {
+            if (fileToOpen == null) {
+                System.out.println(SEARCH_CONTENTS_COMMAND + " expects a file to search");
+                System.exit(1);
+            }
+            searchContents(fileToOpen, contentQuery);
+            if (printStats) {
+                System.out.print(Metrics.snapshot());
+            }
+        } else if (hasExtractAllCommand) {
             if (fileToOpen == null) {
                 System.out.println(EXTRACT_ALL_COMMAND + " expects a file to extract");
                 System.exit(1);
             }
-            extractAll(fileToOpen);
+            extractAll(fileToOpen, writerThreads);
+            if (printStats) {
+                System.out.print(Metrics.snapshot());
+            }
         } else {
             runGui(fileToOpen);
         }
     }
 
-    private static void extractAll(String fileToOpen) throws IOException {
+    /**
+     * Extracts everything into the current directory.
+     * One thread decompresses while the others write the files.
+     */
+    private static void extractAll(String fileToOpen, int writerThreads) throws IOException {
         File file = new File(fileToOpen);
 
-        UnityPackage unityPackage = new UnityPackage(file);
+        UnityPackage unityPackage = new UnityPackageIndexCache(UnityPackageIndexCache.getDefaultCacheDirectory()).open(file);
+        ParallelExtractor extractor = new ParallelExtractor(writerThreads, MAX_BUFFERED_BYTES);
         try (UnityArchiveInputStream unityIS = unityPackage.getUnityArchiveInputStream()) {
-            UnityAsset nextAsset;
-            while ((nextAsset = unityIS.getNextEntry()) != null) {
-                Path assetPath = nextAsset.getFullPathAsPath();
-                Path parentDirectory = assetPath.getParent();
-                if (parentDirectory != null) {
-                    Files.createDirectories(parentDirectory);
-                }
+            extractor.extract(unityIS, Paths.get(""), (asset, assetPath) -> {
+                System.out.println("Extracted " + asset.getFullPathAsPath());
+            });
+        }
+    }
 
-                Files.copy(unityIS, assetPath, StandardCopyOption.REPLACE_EXISTING);
-                System.out.println("Extracted " + assetPath);
-            }
+    /**
+     * Prints the paths of the text assets containing all the words.
+     * The content index is cached, so only the first search reads the text assets.
+     */
+    private static void searchContents(String fileToOpen, String words) throws IOException {
+        File file = new File(fileToOpen);
+
+        UnityPackageIndexCache indexCache = new UnityPackageIndexCache(UnityPackageIndexCache.getDefaultCacheDirectory());
+        UnityPackage unityPackage = indexCache.open(file);
+        ContentIndex contentIndex = indexCache.openContentIndex(unityPackage);
+        for (UnityAsset asset : contentIndex.search(words)) {
+            System.out.println(asset.getFullPath());
         }
     }
 
@@ -0,0 +1,885 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.viewer.cli;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import unitypackage.model.ArchiveTranscoder;
+import unitypackage.model.ContentHashes;
+import unitypackage.model.DependencyGraph;
+import unitypackage.model.DuplicateIndex;
+import unitypackage.model.Metrics;
+import unitypackage.model.PackageDiff;
+import unitypackage.model.ParallelExtractor;
+import unitypackage.model.UnityArchiveInputStream;
+import unitypackage.model.UnityAsset;
+import unitypackage.model.UnityPackage;
+import unitypackage.model.UnityPackageIndexCache;
+import unitypackage.model.UnityPackageWriter;
+import unitypackage.model.Workspace;
+
+/**
+ * Commands that go through many packages without the GUI.
+ * <pre>
+ * list    [options] &lt;package or pattern&gt;...
+ * search  [options] [--contents] &lt;text&gt; &lt;package or pattern&gt;...
+ * extract [options] [--output &lt;directory&gt;] [--dedup | --archive zip|tar] &lt;package or pattern&gt;...
+ * stats   [options] &lt;package or pattern&gt;...
+ * conflicts [options] &lt;package or pattern&gt;...
+ * duplicates [options] &lt;package or pattern&gt;...
+ * diff    [options] &lt;old package&gt; &lt;new package&gt;
+ * export  [options] --output &lt;new package&gt; [--include &lt;path&gt;]... [--exclude &lt;pattern&gt;]... &lt;package&gt;
+ * dependencies [options] [--all] &lt;GUID or path&gt; &lt;package or pattern&gt;...
+ * dependents   [options] [--all] &lt;GUID or path&gt; &lt;package or pattern&gt;...
+ * </pre>
+ * The packages are processed at the same time on a work-stealing pool,
+ * and the records are written to standard output as JSON Lines or CSV as soon as they're ready,
+ * so records of different packages can be mixed together.
+ * Warnings and errors go to standard error.
+ */
+public class BatchCommand {
+
+    private static final String LIST_COMMAND = "list";
+    private static final String SEARCH_COMMAND = "search";
+    private static final String EXTRACT_COMMAND = "extract";
+    private static final String STATS_COMMAND = "stats";
+    private static final String CONFLICTS_COMMAND = "conflicts";
+    private static final String DUPLICATES_COMMAND = "duplicates";
+    private static final String DIFF_COMMAND = "diff";
+    private static final String EXPORT_COMMAND = "export";
+    private static final String DEPENDENCIES_COMMAND = "dependencies";
+    private static final String DEPENDENTS_COMMAND = "dependents";
+
+    private static final String FORMAT_OPTION = "--format";
+    private static final String THREADS_OPTION = "--threads";
+    private static final String OUTPUT_OPTION = "--output";
+    private static final String CONTENTS_OPTION = "--contents";
+    private static final String STATS_OPTION = "--stats";
+    private static final String DEDUP_OPTION = "--dedup";
+    private static final String INCLUDE_OPTION = "--include";
+    private static final String EXCLUDE_OPTION = "--exclude";
+    private static final String ARCHIVE_OPTION = "--archive";
+    private static final String ALL_OPTION = "--all";
+
+    private static final String ZIP_ARCHIVE = "zip";
+    private static final String TAR_ARCHIVE = "tar";
+
+    private static final String[] ASSET_COLUMNS = { "package", "path", "guid", "size", "directory", "modified", "preview" };
+    private static final String[] EXTRACT_COLUMNS = { "package", "path", "file" };
+    private static final String[] STATS_COLUMNS = { "package", "assets", "files", "directories", "bytes", "previews", "missing_meta" };
+    private static final String[] CONFLICT_COLUMNS = { "guid", "kind", "package", "path", "size" };
+    private static final String[] DUPLICATE_COLUMNS = { "sha256", "size", "copies", "package", "path" };
+    private static final String[] DEDUP_EXTRACT_COLUMNS = { "package", "path", "file", "method" };
+    private static final String[] ARCHIVE_EXTRACT_COLUMNS = { "package", "path", "archive", "entry" };
+    private static final String[] DEPENDENCY_COLUMNS = { "package", "guid", "path" };
+    private static final String[] DIFF_COLUMNS = { "change", "guid", "old_path", "new_path", "old_size", "new_size" };
+
+    /**
+     * Each package being extracted gets a couple of threads writing its files.
+     */
+    private static final int EXTRACT_WRITER_THREADS = 2;
+    private static final long EXTRACT_BUFFERED_BYTES = 32 * 1024 * 1024;
+    private static final int ARCHIVE_BUFFER_SIZE = 256 * 1024;
+
+    private static final String USAGE =
+            "Usage:\n" +
+            "  list    [options] <package or pattern>...\n" +
+            "  search  [options] [--contents] <text> <package or pattern>...\n" +
+            "  extract [options] [--output <directory>] [--dedup | --archive zip|tar] <package or pattern>...\n" +
+            "  stats   [options] <package or pattern>...\n" +
+            "  conflicts [options] <package or pattern>...\n" +
+            "  duplicates [options] <package or pattern>...\n" +
+            "  diff    [options] <old package> <new package>\n" +
+            "  export  [options] --output <new package> [--include <path>]... [--exclude <pattern>]... <package>\n" +
+            "  dependencies [options] [--all] <GUID or path> <package or pattern>...\n" +
+            "  dependents   [options] [--all] <GUID or path> <package or pattern>...\n" +
+            "Options:\n" +
+            "  --format jsonl|csv   Output format (default jsonl)\n" +
+            "  --threads N          Packages to process at the same time, or for export the threads\n" +
+            "                       compressing the new package (default number of processors)\n" +
+            "  --stats              Print the time spent in each phase to standard error at the end\n" +
+            "Patterns like \"vendor/*.unitypackage\" or \"incoming/**.unitypackage\" are expanded.";
+
+    public static boolean isCommand(String argument) {
+        return LIST_COMMAND.equals(argument) || SEARCH_COMMAND.equals(argument) ||
+               EXTRACT_COMMAND.equals(argument) || STATS_COMMAND.equals(argument) ||
+               CONFLICTS_COMMAND.equals(argument) || DUPLICATES_COMMAND.equals(argument) ||
+               DIFF_COMMAND.equals(argument) || EXPORT_COMMAND.equals(argument) ||
+               DEPENDENCIES_COMMAND.equals(argument) || DEPENDENTS_COMMAND.equals(argument);
+    }
+
+    /**
+     * @param args The command followed by its options and packages.
+     * @return The exit code: 0 if every package was processed, 1 otherwise.
+     */
+    public static int run(String[] args) throws IOException {
+        BatchCommand batch = new BatchCommand(args[0]);
+        String error = batch.parse(Arrays.asList(args).subList(1, args.length));
+        if (error != null) {
+            System.err.println(error);
+            System.err.println(USAGE);
+            return 1;
+        }
+        return batch.run();
+    }
+
+    private final String command;
+    private String format = RecordWriter.JSON_LINES;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Path outputDirectory = Paths.get("");
+    private boolean searchContents;
+    private boolean printStats;
+    private boolean dedup;
+    /** zip or tar, or null to extract separate files. */
+    private String archiveFormat;
+    private String searchText;
+    /** GUID or path of the asset for dependencies and dependents. */
+    private String dependencyAsset;
+    private boolean transitive;
+    private final List<String> includePaths = new ArrayList<>();
+    private final List<PathMatcher> excludeMatchers = new ArrayList<>();
+    private List<File> packages;
+
+    private final UnityPackageIndexCache indexCache = new UnityPackageIndexCache(UnityPackageIndexCache.getDefaultCacheDirectory());
+    /** Where each package is extracted, named after the package. */
+    private final Map<File, Path> extractDirectories = new HashMap<>();
+    private RecordWriter writer;
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private BatchCommand(String command) {
+        this.command = command;
+    }
+
+    /**
+     * @return An error message, or null if the arguments are fine.
+     */
+    private String parse(List<String> args) throws IOException {
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            switch (arg) {
+                case FORMAT_OPTION:
+                    if (++i >= args.size()) {
+                        return FORMAT_OPTION + " expects " + RecordWriter.JSON_LINES + " or " + RecordWriter.CSV;
+                    }
+                    format = args.get(i).toLowerCase(Locale.ROOT);
+                    if (!format.equals(RecordWriter.JSON_LINES) && !format.equals(RecordWriter.CSV)) {
+                        return FORMAT_OPTION + " expects " + RecordWriter.JSON_LINES + " or " + RecordWriter.CSV;
+                    }
+                    break;
+                case THREADS_OPTION:
+                    try {
+                        threads = Integer.parseInt(args.get(++i));
+                    } catch (IndexOutOfBoundsException | NumberFormatException ex) {
+                        return THREADS_OPTION + " expects a number of threads";
+                    }
+                    if (threads < 1) {
+                        return THREADS_OPTION + " expects a number of threads";
+                    }
+                    break;
+                case OUTPUT_OPTION:
+                    if (!command.equals(EXTRACT_COMMAND) && !command.equals(EXPORT_COMMAND)) {
+                        return OUTPUT_OPTION + " is only for " + EXTRACT_COMMAND + " and " + EXPORT_COMMAND;
+                    }
+                    if (++i >= args.size()) {
+                        return OUTPUT_OPTION + (command.equals(EXPORT_COMMAND) ? " expects the new package" : " expects a directory");
+                    }
+                    outputDirectory = Paths.get(args.get(i));
+                    break;
+                case INCLUDE_OPTION:
+                case EXCLUDE_OPTION:
+                    if (!command.equals(EXPORT_COMMAND)) {
+                        return arg + " is only for " + EXPORT_COMMAND;
+                    }
+                    if (++i >= args.size()) {
+                        return arg + (arg.equals(INCLUDE_OPTION) ? " expects a path" : " expects a pattern");
+                    }
+                    if (arg.equals(INCLUDE_OPTION)) {
+                        includePaths.add(trimSlashes(args.get(i)));
+                    } else {
+                        try {
+                            excludeMatchers.add(FileSystems.getDefault().getPathMatcher("glob:" + args.get(i)));
+                        } catch (IllegalArgumentException ex) {
+                            return EXCLUDE_OPTION + " " + args.get(i) + ": " + ex.getMessage();
+                        }
+                    }
+                    break;
+                case STATS_OPTION:
+                    printStats = true;
+                    break;
+                case DEDUP_OPTION:
+                    if (!command.equals(EXTRACT_COMMAND)) {
+                        return DEDUP_OPTION + " is only for " + EXTRACT_COMMAND;
+                    }
+                    dedup = true;
+                    break;
+                case ARCHIVE_OPTION:
+                    if (!command.equals(EXTRACT_COMMAND)) {
+                        return ARCHIVE_OPTION + " is only for " + EXTRACT_COMMAND;
+                    }
+                    if (++i >= args.size()) {
+                        return ARCHIVE_OPTION + " expects " + ZIP_ARCHIVE + " or " + TAR_ARCHIVE;
+                    }
+                    archiveFormat = args.get(i).toLowerCase(Locale.ROOT);
+                    if (!archiveFormat.equals(ZIP_ARCHIVE) && !archiveFormat.equals(TAR_ARCHIVE)) {
+                        return ARCHIVE_OPTION + " expects " + ZIP_ARCHIVE + " or " + TAR_ARCHIVE;
+                    }
+                    break;
+                case ALL_OPTION:
+                    if (!isDependencyCommand()) {
+                        return ALL_OPTION + " is only for " + DEPENDENCIES_COMMAND + " and " + DEPENDENTS_COMMAND;
+                    }
+                    transitive = true;
+                    break;
+                case CONTENTS_OPTION:
+                    if (!command.equals(SEARCH_COMMAND)) {
+                        return CONTENTS_OPTION + " is only for " + SEARCH_COMMAND;
+                    }
+                    searchContents = true;
+                    break;
+                default:
+                    positional.add(arg);
+            }
+        }
+
+        if (command.equals(SEARCH_COMMAND)) {
+            if (positional.isEmpty()) {
+                return SEARCH_COMMAND + " expects the text to search for";
+            }
+            searchText = positional.remove(0);
+        }
+        if (isDependencyCommand()) {
+            if (positional.isEmpty()) {
+                return command + " expects the GUID or path of an asset";
+            }
+            dependencyAsset = positional.remove(0);
+        }
+        if (positional.isEmpty()) {
+            return command + " expects at least one package";
+        }
+        packages = PackageFiles.expand(positional);
+        if (command.equals(DIFF_COMMAND) && packages.size() != 2) {
+            return DIFF_COMMAND + " expects 2 packages, but got " + packages.size();
+        }
+        if (dedup && archiveFormat != null) {
+            return DEDUP_OPTION + " and " + ARCHIVE_OPTION + " can't be used together";
+        }
+        if (command.equals(EXPORT_COMMAND)) {
+            if (packages.size() != 1) {
+                return EXPORT_COMMAND + " expects 1 package, but got " + packages.size();
+            }
+            if (outputDirectory.toString().isEmpty()) {
+                return EXPORT_COMMAND + " expects " + OUTPUT_OPTION + " <new package>";
+            }
+        }
+        return null;
+    }
+
+    private boolean isDependencyCommand() {
+        return command.equals(DEPENDENCIES_COMMAND) || command.equals(DEPENDENTS_COMMAND);
+    }
+
+    private int run() throws IOException {
+        if (command.equals(EXTRACT_COMMAND)) {
+            nameExtractDirectories();
+        }
+
+        PrintStream data = System.out;
+        // The model prints its warnings to standard output, keep them out of the records
+        System.setOut(System.err);
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(data, StandardCharsets.UTF_8));
+            writer = RecordWriter.create(format, out, getColumns());
+            writer.start();
+
+            if (command.equals(CONFLICTS_COMMAND)) {
+                writeConflicts();
+            } else if (command.equals(DIFF_COMMAND)) {
+                writeDiff();
+            } else if (command.equals(EXPORT_COMMAND)) {
+                export();
+            } else if (command.equals(DUPLICATES_COMMAND) || dedup) {
+                processDuplicates();
+            } else {
+                processPackages();
+            }
+            out.flush();
+        } finally {
+            System.setOut(data);
+        }
+
+        if (printStats) {
+            System.err.print(Metrics.snapshot());
+        }
+
+        return failures.get() == 0 ? 0 : 1;
+    }
+
+    private void processPackages() {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (File unitypackageFile : packages) {
+                tasks.add(pool.submit(() -> processPackage(unitypackageFile)));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Opens all the packages together and writes a record for each asset
+     * whose GUID is in more than one place, with a summary on standard error.
+     */
+    private void writeConflicts() {
+        Workspace workspace = Workspace.open(packages, threads, indexCache);
+        for (Map.Entry<File, Exception> failure : workspace.getFailures().entrySet()) {
+            failures.incrementAndGet();
+            System.err.println("[ERROR] " + failure.getKey() + ": " + failure.getValue());
+        }
+
+        int collisions = 0;
+        List<Workspace.Conflict> conflicts = workspace.getConflicts();
+        RecordWriter.Batch batch = writer.newBatch();
+        for (Workspace.Conflict conflict : conflicts) {
+            if (conflict.getKind() == Workspace.ConflictKind.COLLISION) {
+                collisions++;
+            }
+            String kind = conflict.getKind().name().toLowerCase(Locale.ROOT);
+            for (UnityAsset asset : conflict.getAssets()) {
+                batch.add(conflict.getGuid(),
+                          kind,
+                          asset.getUnityPackage().getUnitypackageFile().getPath(),
+                          asset.getFullPath(),
+                          asset.isProbablyDirectory() ? null : asset.getSize());
+            }
+        }
+        batch.flush();
+
+        System.err.println(String.format("%,d packages, %,d GUIDs, %,d collisions, %,d shared",
+                                         workspace.getPackages().size(), workspace.getGuidCount(),
+                                         collisions, conflicts.size() - collisions));
+    }
+
+    /**
+     * Writes a record for each asset added, removed, moved or changed, with a summary on standard error.
+     */
+    private void writeDiff() {
+        PackageDiff diff;
+        try {
+            diff = PackageDiff.compare(packages.get(0), packages.get(1), indexCache);
+        } catch (IOException | RuntimeException ex) {
+            failures.incrementAndGet();
+            System.err.println("[ERROR] " + ex);
+            return;
+        }
+
+        RecordWriter.Batch batch = writer.newBatch();
+        for (PackageDiff.Entry entry : diff.getEntries()) {
+            UnityAsset oldAsset = entry.getOldAsset();
+            UnityAsset newAsset = entry.getNewAsset();
+            batch.add(entry.getChange().name().toLowerCase(Locale.ROOT),
+                      entry.getGuid(),
+                      oldAsset == null ? null : oldAsset.getFullPath(),
+                      newAsset == null ? null : newAsset.getFullPath(),
+                      oldAsset == null || oldAsset.isProbablyDirectory() ? null : oldAsset.getSize(),
+                      newAsset == null || newAsset.isProbablyDirectory() ? null : newAsset.getSize());
+        }
+        batch.flush();
+
+        System.err.println(String.format("%,d added, %,d removed, %,d moved, %,d changed, %,d moved and changed, %,d unchanged",
+                                         diff.count(PackageDiff.Change.ADDED), diff.count(PackageDiff.Change.REMOVED),
+                                         diff.count(PackageDiff.Change.MOVED), diff.count(PackageDiff.Change.CHANGED),
+                                         diff.count(PackageDiff.Change.MOVED_AND_CHANGED), diff.getUnchangedCount()));
+    }
+
+    /**
+     * Writes a new package with the selected assets of the package,
+     * and a record for each asset written, with a summary on standard error.
+     */
+    private void export() {
+        File unitypackageFile = packages.get(0);
+        File output = outputDirectory.toFile();
+        RecordWriter.Batch batch = writer.newBatch();
+        try {
+            UnityPackage unityPackage = indexCache.open(unitypackageFile);
+            List<UnityAsset> selected = new ArrayList<>();
+            for (UnityAsset asset : unityPackage.getUnityAssetList()) {
+                if (isIncluded(asset.getFullPath()) && !isExcluded(asset.getFullPathAsPath())) {
+                    selected.add(asset);
+                }
+            }
+
+            List<UnityAsset> written = new UnityPackageWriter(threads).write(unityPackage, selected, output);
+            long bytes = 0;
+            for (UnityAsset asset : written) {
+                addAsset(batch, output.getPath(), asset);
+                if (!asset.isProbablyDirectory()) {
+                    bytes += asset.getSize();
+                }
+            }
+            System.err.println(String.format("%,d of %,d assets, %,d bytes, written to %s",
+                                             written.size(), unityPackage.getUnityAssetList().size(), bytes, output));
+        } catch (IOException | RuntimeException ex) {
+            failures.incrementAndGet();
+            System.err.println("[ERROR] " + unitypackageFile + ": " + ex);
+        } finally {
+            batch.flush();
+        }
+    }
+
+    /**
+     * Everything when there's no --include, otherwise the included paths and what's under them.
+     */
+    private boolean isIncluded(String fullPath) {
+        if (includePaths.isEmpty()) {
+            return true;
+        }
+        for (String includePath : includePaths) {
+            if (fullPath.equals(includePath) || fullPath.startsWith(includePath + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Excluding a directory also excludes what's under it.
+     */
+    private boolean isExcluded(Path fullPath) {
+        for (Path path = fullPath; path != null; path = path.getParent()) {
+            for (PathMatcher matcher : excludeMatchers) {
+                if (matcher.matches(path)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String trimSlashes(String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+
+    private interface PackageTask {
+        void run(UnityPackage unityPackage) throws IOException;
+    }
+
+    /**
+     * Runs the task on the packages at the same time, reporting the ones that fail.
+     * @return The packages it worked for, in the same order.
+     */
+    private List<UnityPackage> forEachPackage(List<UnityPackage> unityPackages, PackageTask task) {
+        boolean[] succeeded = new boolean[unityPackages.size()];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < unityPackages.size(); i++) {
+                final int p = i;
+                tasks.add(pool.submit(() -> {
+                    UnityPackage unityPackage = unityPackages.get(p);
+                    try {
+                        task.run(unityPackage);
+                        succeeded[p] = true;
+                    } catch (IOException | RuntimeException ex) {
+                        failures.incrementAndGet();
+                        System.err.println("[ERROR] " + unityPackage.getUnitypackageFile() + ": " + ex);
+                    }
+                }));
+            }
+            for (ForkJoinTask<?> t : tasks) {
+                t.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        List<UnityPackage> worked = new ArrayList<>();
+        for (int i = 0; i < succeeded.length; i++) {
+            if (succeeded[i]) {
+                worked.add(unityPackages.get(i));
+            }
+        }
+        return worked;
+    }
+
+    /**
+     * Hashes the files of all the packages (or loads the cached hashes),
+     * then lists the files with identical contents, or extracts each of them once.
+     */
+    private void processDuplicates() throws IOException {
+        Workspace workspace = Workspace.open(packages, threads, indexCache);
+        for (Map.Entry<File, Exception> failure : workspace.getFailures().entrySet()) {
+            failures.incrementAndGet();
+            System.err.println("[ERROR] " + failure.getKey() + ": " + failure.getValue());
+        }
+
+        Map<UnityPackage, ContentHashes> hashes = new ConcurrentHashMap<>();
+        List<UnityPackage> hashed = forEachPackage(workspace.getPackages(),
+                                                   unityPackage -> hashes.put(unityPackage, indexCache.openContentHashes(unityPackage)));
+        List<ContentHashes> packageHashes = new ArrayList<>();
+        for (UnityPackage unityPackage : hashed) {
+            packageHashes.add(hashes.get(unityPackage));
+        }
+        DuplicateIndex duplicateIndex = new DuplicateIndex(packageHashes);
+
+        if (command.equals(DUPLICATES_COMMAND)) {
+            writeDuplicates(duplicateIndex, hashed.size());
+        } else {
+            extractDeduplicated(duplicateIndex, hashed);
+        }
+    }
+
+    private void writeDuplicates(DuplicateIndex duplicateIndex, int packageCount) {
+        RecordWriter.Batch batch = writer.newBatch();
+        int copies = 0;
+        for (DuplicateIndex.Group group : duplicateIndex.getDuplicates()) {
+            copies += group.getCopies().size() - 1;
+            for (UnityAsset asset : group.getCopies()) {
+                batch.add(group.getHash(),
+                          group.getSize(),
+                          group.getCopies().size(),
+                          asset.getUnityPackage().getUnitypackageFile().getPath(),
+                          asset.getFullPath());
+            }
+        }
+        batch.flush();
+
+        System.err.println(String.format("%,d packages, %,d files with copies, %,d extra copies, %,d bytes in extra copies",
+                                         packageCount, duplicateIndex.getDuplicates().size(), copies,
+                                         duplicateIndex.getWastedBytes()));
+    }
+
+    /**
+     * Extracts each package into its own directory, writing each file contents once
+     * and hardlinking the other copies.
+     */
+    private void extractDeduplicated(DuplicateIndex duplicateIndex, List<UnityPackage> unityPackages) {
+        Map<DuplicateIndex.Method, AtomicInteger> counts = new EnumMap<>(DuplicateIndex.Method.class);
+        for (DuplicateIndex.Method method : DuplicateIndex.Method.values()) {
+            counts.put(method, new AtomicInteger());
+        }
+        AtomicLong linkedBytes = new AtomicLong();
+
+        PackageTask writeFirstCopies = unityPackage -> {
+            RecordWriter.Batch batch = writer.newBatch();
+            try {
+                ParallelExtractor extractor = new ParallelExtractor(EXTRACT_WRITER_THREADS, EXTRACT_BUFFERED_BYTES);
+                duplicateIndex.extractFirstCopies(unityPackage, extractDirectories.get(unityPackage.getUnitypackageFile()),
+                                                  extractor, dedupListener(batch, unityPackage, counts, linkedBytes));
+            } finally {
+                batch.flush();
+            }
+        };
+        // Every first copy has to be there before linking to it
+        List<UnityPackage> written = forEachPackage(unityPackages, writeFirstCopies);
+
+        PackageTask linkCopies = unityPackage -> {
+            RecordWriter.Batch batch = writer.newBatch();
+            try {
+                duplicateIndex.linkCopies(unityPackage, p -> extractDirectories.get(p.getUnitypackageFile()),
+                                          dedupListener(batch, unityPackage, counts, linkedBytes));
+            } finally {
+                batch.flush();
+            }
+        };
+        forEachPackage(written, linkCopies);
+
+        System.err.println(String.format("%,d files written, %,d hardlinked, %,d copied, %,d bytes saved by hardlinks",
+                                         counts.get(DuplicateIndex.Method.WRITTEN).get(),
+                                         counts.get(DuplicateIndex.Method.HARDLINK).get(),
+                                         counts.get(DuplicateIndex.Method.COPY).get(),
+                                         linkedBytes.get()));
+    }
+
+    private static DuplicateIndex.Listener dedupListener(RecordWriter.Batch batch, UnityPackage unityPackage,
+                                                         Map<DuplicateIndex.Method, AtomicInteger> counts,
+                                                         AtomicLong linkedBytes) {
+        String packageName = unityPackage.getUnitypackageFile().getPath();
+        return (asset, file, method) -> {
+            counts.get(method).incrementAndGet();
+            if (method == DuplicateIndex.Method.HARDLINK) {
+                linkedBytes.addAndGet(asset.getSize());
+            }
+            synchronized (batch) {
+                batch.add(packageName, asset.getFullPath(), file.toString(), method.name().toLowerCase(Locale.ROOT));
+            }
+        };
+    }
+
+    private String[] getColumns() {
+        switch (command) {
+            case EXTRACT_COMMAND:
+                if (archiveFormat != null) {
+                    return ARCHIVE_EXTRACT_COLUMNS;
+                }
+                return dedup ? DEDUP_EXTRACT_COLUMNS : EXTRACT_COLUMNS;
+            case STATS_COMMAND:
+                return STATS_COLUMNS;
+            case CONFLICTS_COMMAND:
+                return CONFLICT_COLUMNS;
+            case DUPLICATES_COMMAND:
+                return DUPLICATE_COLUMNS;
+            case DIFF_COMMAND:
+                return DIFF_COLUMNS;
+            case DEPENDENCIES_COMMAND:
+            case DEPENDENTS_COMMAND:
+                return DEPENDENCY_COLUMNS;
+            default:
+                return ASSET_COLUMNS;
+        }
+    }
+
+    /**
+     * Each package goes in a directory named after it, numbered if several packages have the same name.
+     */
+    private void nameExtractDirectories() {
+        Map<String, Integer> nameCounts = new HashMap<>();
+        for (File unitypackageFile : packages) {
+            String name = unitypackageFile.getName();
+            if (name.toLowerCase(Locale.ROOT).endsWith(".unitypackage")) {
+                name = name.substring(0, name.length() - ".unitypackage".length());
+            }
+            int count = nameCounts.merge(name, 1, Integer::sum);
+            if (count > 1) {
+                name = name + "-" + count;
+            }
+            extractDirectories.put(unitypackageFile, outputDirectory.resolve(name));
+        }
+    }
+
+    /**
+     * Whether several packages are processed at the same time. If so they're already
+     * keeping the processors busy, so each package only gets a thread or a few of its own.
+     */
+    private boolean sharesProcessors() {
+        return packages.size() > 1;
+    }
+
+    private void processPackage(File unitypackageFile) {
+        RecordWriter.Batch batch = writer.newBatch();
+        try {
+            UnityPackage unityPackage = indexCache.open(unitypackageFile);
+            if (sharesProcessors()) {
+                unityPackage.setDecompressionThreads(1);
+            }
+            String packageName = unitypackageFile.getPath();
+
+            switch (command) {
+                case LIST_COMMAND:
+                    for (UnityAsset asset : unityPackage.getUnityAssetList()) {
+                        addAsset(batch, packageName, asset);
+                    }
+                    break;
+                case SEARCH_COMMAND:
+                    for (UnityAsset asset : search(unityPackage)) {
+                        addAsset(batch, packageName, asset);
+                    }
+                    break;
+                case EXTRACT_COMMAND:
+                    if (archiveFormat != null) {
+                        extractToArchive(unityPackage, extractDirectories.get(unitypackageFile), batch, packageName);
+                    } else {
+                        extract(unityPackage, extractDirectories.get(unitypackageFile), batch, packageName);
+                    }
+                    break;
+                case STATS_COMMAND:
+                    addStats(batch, packageName, unityPackage);
+                    break;
+                case DEPENDENCIES_COMMAND:
+                case DEPENDENTS_COMMAND:
+                    addDependencies(batch, packageName, unityPackage);
+                    break;
+                default:
+                    throw new IllegalStateException(command);
+            }
+        } catch (IOException | RuntimeException ex) {
+            failures.incrementAndGet();
+            System.err.println("[ERROR] " + unitypackageFile + ": " + ex);
+        } finally {
+            batch.flush();
+        }
+    }
+
+    private static void addAsset(RecordWriter.Batch batch, String packageName, UnityAsset asset) {
+        boolean directory = asset.isProbablyDirectory();
+        Date modified = asset.getDateModified();
+        batch.add(packageName,
+                  asset.getFullPath(),
+                  asset.getGuid(),
+                  directory ? null : asset.getSize(),
+                  directory,
+                  modified == null ? null : modified.toInstant().toString(),
+                  asset.hasPreview());
+    }
+
+    /**
+     * Same as the search box: file assets with the text in their path or GUID, ignoring case.
+     * Or with --contents, text assets containing all the words.
+     */
+    private List<UnityAsset> search(UnityPackage unityPackage) throws IOException {
+        if (searchContents) {
+            return indexCache.openContentIndex(unityPackage).search(searchText);
+        }
+
+        String query = searchText.toLowerCase();
+        List<UnityAsset> matches = new ArrayList<>();
+        for (UnityAsset asset : unityPackage.getUnityAssetList()) {
+            if (!asset.isProbablyDirectory() &&
+                (asset.getFullPath() + "\t" + asset.getGuid()).toLowerCase().contains(query))
+            {
+                matches.add(asset);
+            }
+        }
+        return matches;
+    }
+
+    private static void extract(UnityPackage unityPackage, Path directory, RecordWriter.Batch batch, String packageName)
+            throws IOException
+    {
+        ParallelExtractor extractor = new ParallelExtractor(EXTRACT_WRITER_THREADS, EXTRACT_BUFFERED_BYTES);
+        try (UnityArchiveInputStream unityIS = unityPackage.getUnityArchiveInputStream()) {
+            extractor.extract(unityIS, directory, (asset, assetPath) -> {
+                synchronized (batch) {
+                    batch.add(packageName, asset.getFullPath(), assetPath.toString());
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes all the files into a single zip or tar named after the package, next to where its directory would be.
+     */
+    private void extractToArchive(UnityPackage unityPackage, Path directory, RecordWriter.Batch batch, String packageName)
+            throws IOException
+    {
+        Path archive = directory.resolveSibling(directory.getFileName() + "." + archiveFormat).toAbsolutePath();
+        Files.createDirectories(archive.getParent());
+        String archiveName = archive.toString();
+        int compressionThreads = sharesProcessors() ? EXTRACT_WRITER_THREADS : threads;
+        ArchiveTranscoder transcoder = new ArchiveTranscoder(compressionThreads, EXTRACT_BUFFERED_BYTES);
+        ArchiveTranscoder.Listener listener = (asset, entryName) -> batch.add(packageName, asset.getFullPath(),
+                                                                               archiveName, entryName);
+
+        try (UnityArchiveInputStream unityIS = unityPackage.getUnityArchiveInputStream();
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(archive.toFile()), ARCHIVE_BUFFER_SIZE))
+        {
+            if (archiveFormat.equals(ZIP_ARCHIVE)) {
+                transcoder.toZip(unityIS, out, listener);
+            } else {
+                transcoder.toTar(unityIS, out, listener);
+            }
+        }
+    }
+
+    /**
+     * What the asset references, or what references it, through the guid: references
+     * in the YAML assets and .meta files. GUIDs that aren't in the package have no path.
+     * The dependency graph is cached, so only the first time reads the files.
+     */
+    private void addDependencies(RecordWriter.Batch batch, String packageName, UnityPackage unityPackage)
+            throws IOException
+    {
+        DependencyGraph graph = indexCache.openDependencyGraph(unityPackage);
+
+        String guid = dependencyAsset;
+        for (UnityAsset asset : unityPackage.getUnityAssetList()) {
+            if (dependencyAsset.equals(asset.getFullPath())) {
+                guid = asset.getGuid();
+                break;
+            }
+        }
+        if (guid == null) {
+            System.out.println("[WARN] " + packageName + ": " + dependencyAsset + " has no asset.meta, so nothing can reference it");
+            return;
+        }
+
+        List<String> guids;
+        if (command.equals(DEPENDENTS_COMMAND)) {
+            guids = transitive ? graph.getAllDependents(guid) : graph.getDependents(guid);
+        } else {
+            guids = transitive ? graph.getAllDependencies(guid) : graph.getDependencies(guid);
+        }
+        for (String found : guids) {
+            UnityAsset asset = graph.getAsset(found);
+            batch.add(packageName, found, asset == null ? null : asset.getFullPath());
+        }
+    }
+
+    private static void addStats(RecordWriter.Batch batch, String packageName, UnityPackage unityPackage) {
+        int files = 0;
+        int directories = 0;
+        long bytes = 0;
+        int previews = 0;
+        int missingMeta = 0;
+        for (UnityAsset asset : unityPackage.getUnityAssetList()) {
+            if (asset.isProbablyDirectory()) {
+                directories++;
+            } else {
+                files++;
+                bytes += asset.getSize();
+            }
+            if (asset.hasPreview()) {
+                previews++;
+            }
+            if (asset.getGuid() == null) {
+                missingMeta++;
+            }
+        }
+        batch.add(packageName, files + directories, files, directories, bytes, previews, missingMeta);
+    }
+}
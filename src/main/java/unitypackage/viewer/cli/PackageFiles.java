@@ -0,0 +1,114 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.viewer.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Turns command line arguments into package files, expanding glob patterns
+ * (like {@code vendor/*.unitypackage} or {@code incoming/**.unitypackage})
+ * for shells that don't, or when they're quoted.
+ */
+class PackageFiles {
+
+    private static final String GLOB_CHARACTERS = "*?[{";
+
+    private PackageFiles() {
+    }
+
+    /**
+     * Each file only appears once, in the order of the arguments.
+     * Arguments that aren't patterns are kept as they are, even if they don't exist,
+     * so the error is reported with the rest of the package errors.
+     */
+    static List<File> expand(List<String> arguments) throws IOException {
+        Set<File> files = new LinkedHashSet<>();
+        for (String argument : arguments) {
+            if (isPattern(argument) && !new File(argument).exists()) {
+                List<File> matches = expandPattern(argument);
+                if (matches.isEmpty()) {
+                    System.err.println("[WARN] No files match " + argument);
+                }
+                files.addAll(matches);
+            } else {
+                files.add(new File(argument).getAbsoluteFile());
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    private static boolean isPattern(String argument) {
+        for (int i = 0; i < argument.length(); i++) {
+            if (GLOB_CHARACTERS.indexOf(argument.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Walks the directory before the first pattern character,
+     * only as deep as the pattern can go.
+     */
+    private static List<File> expandPattern(String pattern) throws IOException {
+        String normalized = pattern.replace(File.separatorChar, '/');
+
+        int firstGlob = 0;
+        while (GLOB_CHARACTERS.indexOf(normalized.charAt(firstGlob)) < 0) {
+            firstGlob++;
+        }
+        int baseEnd = normalized.lastIndexOf('/', firstGlob);
+        Path base = baseEnd < 0 ? Paths.get("") : Paths.get(normalized.substring(0, baseEnd + 1));
+        String relativePattern = normalized.substring(baseEnd + 1);
+
+        int maxDepth;
+        if (relativePattern.contains("**")) {
+            maxDepth = Integer.MAX_VALUE;
+        } else {
+            maxDepth = relativePattern.split("/").length;
+        }
+
+        Path walkFrom = base.toString().isEmpty() ? Paths.get(".") : base;
+        if (!Files.isDirectory(walkFrom)) {
+            return new ArrayList<>();
+        }
+
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + relativePattern);
+        try (Stream<Path> paths = Files.walk(walkFrom, maxDepth)) {
+            return paths.filter(Files::isRegularFile)
+                        .filter(path -> matcher.matches(walkFrom.relativize(path)))
+                        .sorted()
+                        .map(path -> path.toAbsolutePath().normalize().toFile())
+                        .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.viewer.cli;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/**
+ * Writes records, one per line, as JSON Lines or CSV.
+ * <p>
+ * Several threads can write at once. Each one collects its records in a {@link Batch}
+ * which is written out in whole lines every so often, so lines are never mixed together.
+ */
+abstract class RecordWriter {
+
+    static final String JSON_LINES = "jsonl";
+    static final String CSV = "csv";
+
+    /** How much a batch collects before writing it out. */
+    private static final int FLUSH_CHARS = 64 * 1024;
+
+    private final Writer out;
+    protected final String[] columns;
+
+    protected RecordWriter(Writer out, String[] columns) {
+        this.out = out;
+        this.columns = columns;
+    }
+
+    /**
+     * @param format {@link #JSON_LINES} or {@link #CSV}.
+     * @throws IllegalArgumentException if the format isn't one of those.
+     */
+    static RecordWriter create(String format, Writer out, String... columns) {
+        switch (format) {
+            case JSON_LINES:
+                return new JsonLines(out, columns);
+            case CSV:
+                return new Csv(out, columns);
+            default:
+                throw new IllegalArgumentException("Unknown format " + format);
+        }
+    }
+
+    /**
+     * Writes anything that has to come before the records.
+     */
+    void start() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        appendHeader(sb);
+        write(sb);
+    }
+
+    Batch newBatch() {
+        return new Batch();
+    }
+
+    private synchronized void write(CharSequence lines) throws IOException {
+        if (lines.length() > 0) {
+            out.append(lines);
+            out.flush();
+        }
+    }
+
+    protected abstract void appendHeader(StringBuilder sb);
+
+    /**
+     * @param values One for each column. Strings, numbers, booleans or null.
+     */
+    protected abstract void appendRecord(StringBuilder sb, Object[] values);
+
+    /**
+     * Records from one thread.
+     */
+    class Batch {
+        private final StringBuilder sb = new StringBuilder();
+
+        void add(Object... values) {
+            if (values.length != columns.length) {
+                throw new IllegalArgumentException("Expected " + columns.length + " values but got " + values.length);
+            }
+            appendRecord(sb, values);
+            if (sb.length() >= FLUSH_CHARS) {
+                flush();
+            }
+        }
+
+        void flush() {
+            try {
+                write(sb);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            sb.setLength(0);
+        }
+    }
+
+    // ...................................................................................
+
+    /**
+     * One JSON object per line, with the column names as keys.
+     */
+    private static class JsonLines extends RecordWriter {
+
+        JsonLines(Writer out, String[] columns) {
+            super(out, columns);
+        }
+
+        @Override
+        protected void appendHeader(StringBuilder sb) {
+        }
+
+        @Override
+        protected void appendRecord(StringBuilder sb, Object[] values) {
+            sb.append('{');
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                appendString(sb, columns[i]);
+                sb.append(':');
+                Object value = values[i];
+                if (value == null || value instanceof Number || value instanceof Boolean) {
+                    sb.append(value);
+                } else {
+                    appendString(sb, value.toString());
+                }
+            }
+            sb.append("}\n");
+        }
+
+        private static void appendString(StringBuilder sb, String s) {
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '"':  sb.append("\\\""); break;
+                    case '\\': sb.append("\\\\"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    default:
+                        if (c < 0x20) {
+                            sb.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            sb.append(c);
+                        }
+                }
+            }
+            sb.append('"');
+        }
+    }
+
+    // ...................................................................................
+
+    /**
+     * A header line with the column names, then comma separated values,
+     * quoted when needed (RFC 4180).
+     */
+    private static class Csv extends RecordWriter {
+
+        Csv(Writer out, String[] columns) {
+            super(out, columns);
+        }
+
+        @Override
+        protected void appendHeader(StringBuilder sb) {
+            appendRecord(sb, columns);
+        }
+
+        @Override
+        protected void appendRecord(StringBuilder sb, Object[] values) {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                if (values[i] != null) {
+                    appendValue(sb, values[i].toString());
+                }
+            }
+            sb.append("\r\n");
+        }
+
+        private static void appendValue(StringBuilder sb, String s) {
+            boolean quote = false;
+            for (int i = 0; i < s.length() && !quote; i++) {
+                char c = s.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                sb.append(s);
+                return;
+            }
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"') {
+                    sb.append('"');
+                }
+                sb.append(c);
+            }
+            sb.append('"');
+        }
+    }
+}
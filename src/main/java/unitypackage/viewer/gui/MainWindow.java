@@ -41,6 +41,7 @@
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import javax.swing.DefaultListModel;
@@ -55,8 +56,11 @@
 import javax.swing.SwingWorker;
 import javax.swing.UIManager;
 import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreePath;
 import javax.swing.tree.TreeSelectionModel;
+import unitypackage.model.Metrics;
+import unitypackage.model.PackageDiff;
 import unitypackage.model.UnityAsset;
 import unitypackage.viewer.Main;
 import unitypackage.viewer.gui.model.SearchResult;
@@ -131,6 +135,8 @@ public MainWindow(String fileToOpen) {
         initComponents();
 
         guiPackageTree.setRowHeight(guiPackageTree.getRowHeight() + 5);
+        // With a fixed row height, the tree only needs to lay out the rows that are visible
+        guiPackageTree.setLargeModel(true);
         guiPackageTree.setCellRenderer(new TreeRenderer());
 
         setGlassPane(loadingGlassPane);
@@ -177,9 +183,14 @@ private void openFile(File unitypackagePath) {
 
         SwingWorker<DefaultTreeModel, Void> swingWorker = new SwingWorker<DefaultTreeModel, Void>() {
 
+            /** Where the time went while opening it. */
+            private Metrics.Snapshot openMetrics;
+
             @Override
             protected DefaultTreeModel doInBackground() throws Exception {
+                Metrics.Snapshot before = Metrics.snapshot();
                 DefaultTreeModel uiTreeModel = guiModel.buildTreeModel(unitypackagePath);
+                openMetrics = Metrics.snapshot().minus(before);
                 HistoryIni.addLastFile(unitypackagePath);
                 return uiTreeModel;
             }
@@ -191,7 +202,8 @@ protected void done() {
                 try {
                     DefaultTreeModel uiTreeModel = get();
                     guiPackageTree.setModel(uiTreeModel);
-                    guiCurrentFileLabel.setText(unitypackagePath.toString());
+                    guiCurrentFileLabel.setText(unitypackagePath + "   (" + openMetrics.toShortString() + ")");
+                    guiCurrentFileLabel.setToolTipText("<html><pre>" + openMetrics + "</pre></html>");
                     expandAllTree();
                     setWindowTitleFile(unitypackagePath.getName());
                 } catch (Exception ex) {
@@ -220,9 +232,42 @@ protected void done() {
         swingWorker.execute();
     }
 
+    /**
+     * Expanding a directory makes the nodes of everything in it,
+     * so stop expanding at this many rows or huge packages freeze the window.
+     */
+    private static final int MAX_EXPAND_ALL_ROWS = 5000;
+
+    /**
+     * Expands one level at a time, so the top of the tree opens up first,
+     * skipping directories that would go over {@link #MAX_EXPAND_ALL_ROWS}.
+     */
     private void expandAllTree() {
-        for (int i = 0; i < guiPackageTree.getRowCount(); i++) {
-            guiPackageTree.expandRow(i);
+        TreeModel model = guiPackageTree.getModel();
+        if (model == null) {
+            // Nothing open yet
+            return;
+        }
+        List<TreePath> level = new ArrayList<>();
+        level.add(new TreePath(model.getRoot()));
+
+        while (!level.isEmpty()) {
+            List<TreePath> nextLevel = new ArrayList<>();
+            for (TreePath path : level) {
+                Object node = path.getLastPathComponent();
+                int childCount = model.getChildCount(node);
+                if (guiPackageTree.getRowCount() + childCount > MAX_EXPAND_ALL_ROWS) {
+                    continue;
+                }
+                guiPackageTree.expandPath(path);
+                for (int i = 0; i < childCount; i++) {
+                    Object child = model.getChild(node, i);
+                    if (!model.isLeaf(child)) {
+                        nextLevel.add(path.pathByAddingChild(child));
+                    }
+                }
+            }
+            level = nextLevel;
         }
     }
     private void collapseAllTree() {
@@ -245,6 +290,108 @@ private UnityTreeNode getSingleSelectedTreeNode() {
         return selectedNode;
     }
 
+    /**
+     * Extracts the file next to the .unitypackage.
+     */
+    private void exportSingleAsset(UnityAsset asset) {
+        String assetFileName = asset.getFileName();
+
+        Path outputFile = guiModel.getCurrentUnitypackage().toPath().getParent().resolve(assetFileName);
+        boolean exists = Files.exists(outputFile);
+        if (exists) {
+            int dialogResult = JOptionPane.showConfirmDialog(null,
+                    "Overwrite existing file " + outputFile + " ?","Overwrite?",
+                    JOptionPane.YES_NO_OPTION);
+            if (dialogResult != JOptionPane.YES_OPTION){
+              return;
+            }
+        }
+
+        try {
+            guiModel.extractFile(asset, outputFile);
+            openDirectory(outputFile.getParent());
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "Error writing file " + outputFile + " " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Extracts the files in one pass, under their full Unity paths next to the .unitypackage.
+     */
+    private void exportMultipleAssets(List<UnityAsset> assets) {
+        if (assets.isEmpty()) {
+            return;
+        }
+
+        Path outputDirectory = guiModel.getCurrentUnitypackage().toPath().getParent();
+        long existingCount = assets.stream()
+                .filter(asset -> Files.exists(outputDirectory.resolve(asset.getFullPath())))
+                .count();
+        if (existingCount > 0) {
+            int dialogResult = JOptionPane.showConfirmDialog(null,
+                    "Overwrite " + existingCount + " existing files in " + outputDirectory + " ?","Overwrite?",
+                    JOptionPane.YES_NO_OPTION);
+            if (dialogResult != JOptionPane.YES_OPTION){
+              return;
+            }
+        }
+
+        SwingWorker<List<Path>, Void> swingWorker = new SwingWorker<List<Path>, Void>() {
+
+            @Override
+            protected List<Path> doInBackground() throws Exception {
+                return guiModel.extractFiles(assets, outputDirectory);
+            }
+
+            @Override
+            protected void done() {
+
+                Exception thrown = null;
+                try {
+                    get();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    thrown = ex;
+                } finally {
+                    loadingGlassPane.setVisible(false);
+                    setCursor(Cursor.getDefaultCursor());
+                }
+
+                if (thrown != null) {
+                    JOptionPane.showMessageDialog(MainWindow.this, "Error writing files to " + outputDirectory + " " + thrown.getMessage());
+                } else {
+                    try {
+                        openDirectory(outputDirectory);
+                    } catch (IOException ex) {
+                        JOptionPane.showMessageDialog(MainWindow.this, "Error opening " + outputDirectory + " " + ex.getMessage());
+                    }
+                }
+            }
+        };
+
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        loadingGlassPane.setText("Exporting " + assets.size() + " files ...");
+        loadingGlassPane.setVisible(true);
+
+        swingWorker.execute();
+    }
+
+    /**
+     * Open folder containing the extracted files.
+     */
+    private static void openDirectory(Path directory) throws IOException {
+        boolean USE_DESKTOP = true;
+        if (USE_DESKTOP) {
+            // Opens the directory window if it doesn't exist (Windows behavior)
+            // Does not select the extracted file.
+            // TODO I think Java 9 has some better APIs for this.
+            Desktop.getDesktop().browse(directory.toUri());
+        } else {
+            // Windows specific, highlights the extracted file, but also opens up a new window every time
+            Runtime.getRuntime().exec("explorer.exe /select," + directory);
+        }
+    }
+
     private void setClipboard(String text) {
         Toolkit.getDefaultToolkit()
                 .getSystemClipboard()
@@ -276,11 +423,13 @@ private void initComponents() {
         guiExpandAllButton = new javax.swing.JButton();
         guiPreviewLabelImage = new javax.swing.JLabel();
         guiExportButton = new javax.swing.JButton();
+        guiCompareButton = new javax.swing.JButton();
         guiBottomPanel = new javax.swing.JPanel();
         guiTextSearch = new javax.swing.JTextField();
         guiListResultsScrollPane = new javax.swing.JScrollPane();
         guiListResults = new javax.swing.JList<>();
         guiSearchButton = new javax.swing.JButton();
+        guiSearchContentsCheckBox = new javax.swing.JCheckBox();
 
         guiTreePopupMenu.addPopupMenuListener(new javax.swing.event.PopupMenuListener() {
             public void popupMenuWillBecomeVisible(javax.swing.event.PopupMenuEvent evt) {
@@ -395,6 +544,19 @@ public void actionPerformed(java.awt.event.ActionEvent evt) {
         gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
         guiRightPanel.add(guiExportButton, gridBagConstraints);
 
+        guiCompareButton.setText("Compare with...");
+        guiCompareButton.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                guiCompareButtonActionPerformed(evt);
+            }
+        });
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 3;
+        gridBagConstraints.gridwidth = java.awt.GridBagConstraints.REMAINDER;
+        gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
+        guiRightPanel.add(guiCompareButton, gridBagConstraints);
+
         guiTopPanel.add(guiRightPanel, java.awt.BorderLayout.LINE_END);
 
         guiMainSplitPane.setTopComponent(guiTopPanel);
@@ -427,6 +589,9 @@ public void actionPerformed(java.awt.event.ActionEvent evt) {
         });
         guiBottomPanel.add(guiSearchButton, java.awt.BorderLayout.EAST);
 
+        guiSearchContentsCheckBox.setText("Search in text file contents");
+        guiBottomPanel.add(guiSearchContentsCheckBox, java.awt.BorderLayout.SOUTH);
+
         guiMainSplitPane.setBottomComponent(guiBottomPanel);
 
         getContentPane().add(guiMainSplitPane, java.awt.BorderLayout.CENTER);
@@ -447,16 +612,65 @@ private void guiSearchButtonActionPerformed(java.awt.event.ActionEvent evt) {//G
             return;
         }
 
-        List<SearchResult> matches = guiModel.search(searchText);
+        if (guiSearchContentsCheckBox.isSelected()) {
+            searchContents(searchText);
+        } else {
+            showSearchResults(guiModel.search(searchText));
+        }
 
-        for (SearchResult listItem : matches) {
-            listModel.addElement(listItem);
+    }//GEN-LAST:event_guiSearchButtonActionPerformed
 
-            TreePath tp = new TreePath(listItem.getTreeNodePath());
-            treeSelectionModel.addSelectionPath(tp);
+    private void showSearchResults(List<SearchResult> matches) {
+        DefaultListModel<SearchResult> listModel = (DefaultListModel<SearchResult>) guiListResults.getModel();
+
+        TreePath[] treePaths = new TreePath[matches.size()];
+        for (int i = 0; i < treePaths.length; i++) {
+            SearchResult listItem = matches.get(i);
+            listModel.addElement(listItem);
+            treePaths[i] = new TreePath(listItem.getTreeNodePath());
         }
 
-    }//GEN-LAST:event_guiSearchButtonActionPerformed
+        // All at once, selecting them one by one updates the tree every time
+        guiPackageTree.getSelectionModel().addSelectionPaths(treePaths);
+    }
+
+    /**
+     * The first content search of a package can take a while, so it's done in the background.
+     */
+    private void searchContents(String searchText) {
+        SwingWorker<List<SearchResult>, Void> swingWorker = new SwingWorker<List<SearchResult>, Void>() {
+
+            @Override
+            protected List<SearchResult> doInBackground() throws Exception {
+                return guiModel.searchContents(searchText);
+            }
+
+            @Override
+            protected void done() {
+
+                Exception thrown = null;
+                try {
+                    showSearchResults(get());
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    thrown = ex;
+                } finally {
+                    loadingGlassPane.setVisible(false);
+                    setCursor(Cursor.getDefaultCursor());
+                }
+
+                if (thrown != null) {
+                    JOptionPane.showMessageDialog(MainWindow.this, "Error searching file contents " + thrown.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        loadingGlassPane.setText("Searching file contents ...");
+        loadingGlassPane.setVisible(true);
+
+        swingWorker.execute();
+    }
 
     private void guiTextSearchActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_guiTextSearchActionPerformed
         guiSearchButtonActionPerformed(evt);
@@ -464,43 +678,21 @@ private void guiTextSearchActionPerformed(java.awt.event.ActionEvent evt) {//GEN
 
     private void guiExportButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_guiExportButtonActionPerformed
 
-        TreePath tp = guiPackageTree.getSelectionPath();
-        if (tp == null) {
+        TreePath[] selectedPaths = guiPackageTree.getSelectionPaths();
+        if (selectedPaths == null) {
             // Somehow nothing is selected
             return;
         }
-        UnityTreeNode.Asset assetNode = (UnityTreeNode.Asset) tp.getLastPathComponent(); // assumes no empty directories
-        UnityAsset asset = assetNode.getAsset();
-        String assetFileName = asset.getFileName();
-
-        Path outputFile = guiModel.getCurrentUnitypackage().toPath().getParent().resolve(assetFileName);
-        boolean exists = Files.exists(outputFile);
-        if (exists) {
-            int dialogResult = JOptionPane.showConfirmDialog(null,
-                    "Overwrite existing file " + outputFile + " ?","Overwrite?",
-                    JOptionPane.YES_NO_OPTION);
-            if (dialogResult != JOptionPane.YES_OPTION){
-              return;
-            }
-        }
 
-        try {
-            guiModel.extractFile(asset, outputFile);
-
-            // Open folder containing the extracted file
-            boolean USE_DESKTOP = true;
-            if (USE_DESKTOP) {
-                // Opens the directory window if it doesn't exist (Windows behavior)
-                // Does not select the extracted file.
-                // TODO I think Java 9 has some better APIs for this.
-                Desktop.getDesktop().browse(outputFile.getParent().toUri());
-            } else {
-                // Windows specific, highlights the extracted file, but also opens up a new window every time
-                Runtime.getRuntime().exec("explorer.exe /select," + outputFile);
+        if (selectedPaths.length == 1 && selectedPaths[0].getLastPathComponent() instanceof UnityTreeNode.Asset) {
+            UnityTreeNode.Asset assetNode = (UnityTreeNode.Asset) selectedPaths[0].getLastPathComponent();
+            exportSingleAsset(assetNode.getAsset());
+        } else {
+            List<UnityTreeNode> selectedNodes = new ArrayList<>();
+            for (TreePath tp : selectedPaths) {
+                selectedNodes.add((UnityTreeNode) tp.getLastPathComponent());
             }
-
-        } catch (IOException ex) {
-            JOptionPane.showMessageDialog(this, "Error writing file " + outputFile + " " + ex.getMessage());
+            exportMultipleAssets(UnitypackageGuiModel.getFileAssetsUnder(selectedNodes));
         }
 
     }//GEN-LAST:event_guiExportButtonActionPerformed
@@ -520,9 +712,20 @@ private void guiListResultsValueChanged(javax.swing.event.ListSelectionEvent evt
 
     private void guiOpenButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_guiOpenButtonActionPerformed
 
+        File f = chooseUnitypackage(".unitypackage");
+        if (f == null)
+            return;
+        openFile(f);
+
+    }//GEN-LAST:event_guiOpenButtonActionPerformed
+
+    /**
+     * @return null if cancelled.
+     */
+    private File chooseUnitypackage(String dialogTitle) {
         JFileChooser fc = new JFileChooser();
         fc.setAcceptAllFileFilterUsed(true);
-        fc.setDialogTitle(".unitypackage");
+        fc.setDialogTitle(dialogTitle);
         UnitypackageFileName.UnitypackageFileFilter fileFilter = new UnitypackageFileName.UnitypackageFileFilter();
         fc.addChoosableFileFilter(fileFilter);
         fc.setFileFilter(fileFilter);
@@ -534,11 +737,56 @@ private void guiOpenButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN
 
         int result = fc.showOpenDialog(this);
         if (result != JFileChooser.APPROVE_OPTION)
+            return null;
+        return fc.getSelectedFile();
+    }
+
+    private void guiCompareButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_guiCompareButtonActionPerformed
+
+        if (guiPackageTree.getModel() == null) {
+            // Nothing open to compare
             return;
-        File f = fc.getSelectedFile();
-        openFile(f);
+        }
 
-    }//GEN-LAST:event_guiOpenButtonActionPerformed
+        File otherVersion = chooseUnitypackage("Newer version of the .unitypackage");
+        if (otherVersion == null)
+            return;
+
+        SwingWorker<PackageDiff, Void> swingWorker = new SwingWorker<PackageDiff, Void>() {
+            @Override
+            protected PackageDiff doInBackground() throws Exception {
+                return guiModel.compareWith(otherVersion);
+            }
+
+            @Override
+            protected void done() {
+                Exception thrown = null;
+                PackageDiff diff = null;
+                try {
+                    diff = get();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    thrown = ex;
+                } finally {
+                    loadingGlassPane.setVisible(false);
+                    setCursor(Cursor.getDefaultCursor());
+                }
+
+                if (thrown != null) {
+                    JOptionPane.showMessageDialog(MainWindow.this, "Error comparing with " + otherVersion + " " + thrown.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                } else {
+                    new PackageDiffDialog(MainWindow.this, diff).setVisible(true);
+                }
+            }
+        };
+
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        loadingGlassPane.setText("Comparing with " + otherVersion + " ...");
+        loadingGlassPane.setVisible(true);
+
+        swingWorker.execute();
+
+    }//GEN-LAST:event_guiCompareButtonActionPerformed
 
     private void guiExpandAllButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_guiExpandAllButtonActionPerformed
         expandAllTree();
@@ -621,6 +869,7 @@ private void guiTreePopupMenuPopupMenuWillBecomeVisible(javax.swing.event.PopupM
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JPanel guiBottomPanel;
     private javax.swing.JButton guiCollapseAllButton;
+    private javax.swing.JButton guiCompareButton;
     private javax.swing.JLabel guiCurrentFileLabel;
     private javax.swing.JButton guiExpandAllButton;
     private javax.swing.JButton guiExportButton;
@@ -633,6 +882,7 @@ private void guiTreePopupMenuPopupMenuWillBecomeVisible(javax.swing.event.PopupM
     private javax.swing.JLabel guiPreviewLabelImage;
     private javax.swing.JPanel guiRightPanel;
     private javax.swing.JButton guiSearchButton;
+    private javax.swing.JCheckBox guiSearchContentsCheckBox;
     private javax.swing.JTextField guiTextSearch;
     private javax.swing.JPanel guiTopPanel;
     private javax.swing.JMenuItem guiTreeMenuCopyGuid;
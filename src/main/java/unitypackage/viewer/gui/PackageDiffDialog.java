@@ -0,0 +1,121 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.viewer.gui;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.util.Locale;
+import javax.swing.BorderFactory;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.table.AbstractTableModel;
+import unitypackage.model.PackageDiff;
+import unitypackage.model.UnityAsset;
+
+/**
+ * Lists what was added, removed, moved or changed between two versions of a package.
+ * Click a column header to sort by it.
+ */
+public class PackageDiffDialog extends JDialog {
+
+    private static final String[] COLUMNS = { "Change", "Path", "Old path", "Old size", "New size", "GUID" };
+
+    public PackageDiffDialog(JFrame owner, PackageDiff diff) {
+        super(owner, diff.getOldPackage().getUnitypackageFile().getName() + " → " +
+                     diff.getNewPackage().getUnitypackageFile().getName(), false);
+
+        JLabel summary = new JLabel(String.format("%,d added, %,d removed, %,d moved, %,d changed, %,d moved and changed, %,d unchanged",
+                                                  diff.count(PackageDiff.Change.ADDED), diff.count(PackageDiff.Change.REMOVED),
+                                                  diff.count(PackageDiff.Change.MOVED), diff.count(PackageDiff.Change.CHANGED),
+                                                  diff.count(PackageDiff.Change.MOVED_AND_CHANGED), diff.getUnchangedCount()));
+        summary.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+
+        JTable table = new JTable(new DiffTableModel(diff));
+        table.setAutoCreateRowSorter(true);
+        table.getColumnModel().getColumn(1).setPreferredWidth(300);
+        table.getColumnModel().getColumn(2).setPreferredWidth(200);
+
+        getContentPane().add(summary, BorderLayout.NORTH);
+        getContentPane().add(new JScrollPane(table), BorderLayout.CENTER);
+
+        setSize(new Dimension(900, 500));
+        setLocationRelativeTo(owner);
+    }
+
+    private static class DiffTableModel extends AbstractTableModel {
+
+        private final PackageDiff diff;
+
+        DiffTableModel(PackageDiff diff) {
+            this.diff = diff;
+        }
+
+        @Override
+        public int getRowCount() {
+            return diff.getEntries().size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return column == 3 || column == 4 ? Long.class : String.class;
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            PackageDiff.Entry entry = diff.getEntries().get(row);
+            UnityAsset oldAsset = entry.getOldAsset();
+            switch (column) {
+                case 0:
+                    return entry.getChange().name().toLowerCase(Locale.ROOT).replace('_', ' ');
+                case 1:
+                    return entry.getPath();
+                case 2:
+                    // Only worth showing if it's somewhere else now
+                    return oldAsset == null || entry.getNewAsset() == null ||
+                           oldAsset.getFullPath().equals(entry.getPath()) ? null : oldAsset.getFullPath();
+                case 3:
+                    return sizeOf(oldAsset);
+                case 4:
+                    return sizeOf(entry.getNewAsset());
+                case 5:
+                    return entry.getGuid();
+                default:
+                    throw new IndexOutOfBoundsException(String.valueOf(column));
+            }
+        }
+
+        private static Long sizeOf(UnityAsset asset) {
+            return asset == null || asset.isProbablyDirectory() ? null : asset.getSize();
+        }
+    }
+}
@@ -18,21 +18,46 @@
 
 package unitypackage.viewer.gui;
 
+import unitypackage.viewer.gui.model.TreeCellText;
 import unitypackage.viewer.gui.model.UnityTreeNode;
+import java.awt.Color;
 import java.awt.Component;
-import java.awt.image.BufferedImage;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Insets;
+import java.awt.Toolkit;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Map;
 import javax.imageio.ImageIO;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
 import javax.swing.JTree;
 import javax.swing.tree.DefaultTreeCellRenderer;
 
+/**
+ * Draws the name of a node like a normal tree cell, then draws its details after it
+ * in lighter text. All the text comes already formatted from the node,
+ * so painting a cell doesn't format or parse anything.
+ */
 public class TreeRenderer extends DefaultTreeCellRenderer {
 
+    private static final Color DETAIL_COLOR = new Color(0xbb, 0xbb, 0xbb);
+    private static final Color MISSING_COLOR = new Color(0xff, 0xaa, 0xaa);
+
     private ImageIcon hasPreviewIcon;
 
+    private Font plainFont;
+    private Font italicFont;
+    /** Text anti-aliasing settings of the desktop, the same ones the label uses for the name. */
+    private final Map<?, ?> desktopHints = (Map<?, ?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+
+    private TreeCellText cellText;
+    private int[] runOffsets;
+
     public TreeRenderer() {
         try (InputStream stream = getClass().getResourceAsStream("zoom-fit-best-2.png")) {
             if (stream != null) {
@@ -49,13 +74,60 @@ public Component getTreeCellRendererComponent(JTree tree, Object value, boolean
         Icon leafIcon = getDefaultLeafIcon();
 
         UnityTreeNode unityNode = (UnityTreeNode) value;
-        BufferedImage preview = unityNode.getPreviewImage();
-        if (preview != null) {
+        if (unityNode.hasPreviewImage()) {
             leafIcon = hasPreviewIcon;
         }
 
         setLeafIcon(leafIcon);
 
-        return super.getTreeCellRendererComponent(tree, value, sel, expanded, leaf, row, hasFocus);
+        cellText = unityNode.getCellText();
+        super.getTreeCellRendererComponent(tree, cellText.getName(), sel, expanded, leaf, row, hasFocus);
+
+        Font font = getFont();
+        if (font != plainFont) {
+            plainFont = font;
+            italicFont = font == null ? null : font.deriveFont(Font.ITALIC);
+        }
+        runOffsets = font == null ? null : cellText.getRunOffsets(getFontMetrics(plainFont), getFontMetrics(italicFont));
+
+        return this;
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        Dimension size = super.getPreferredSize();
+        if (size != null && runOffsets != null) {
+            size.width += runOffsets[runOffsets.length - 1] - runOffsets[0];
+        }
+        return size;
+    }
+
+    @Override
+    public void paint(Graphics g) {
+        super.paint(g);
+
+        if (runOffsets == null || cellText.getRunCount() == 0) {
+            return;
+        }
+
+        if (desktopHints != null) {
+            ((Graphics2D) g).addRenderingHints(desktopHints);
+        }
+
+        Insets insets = getInsets();
+        Icon icon = getIcon();
+        int x = insets.left;
+        if (icon != null) {
+            x += icon.getIconWidth() + getIconTextGap();
+        }
+        FontMetrics metrics = getFontMetrics(plainFont);
+        int y = insets.top + (getHeight() - insets.top - insets.bottom - metrics.getHeight()) / 2 + metrics.getAscent();
+
+        for (int i = 0; i < cellText.getRunCount(); i++) {
+            TreeCellText.Style style = cellText.getStyle(i);
+            g.setColor(style == TreeCellText.Style.MISSING_ITALIC ? MISSING_COLOR : DETAIL_COLOR);
+            g.setFont(style == TreeCellText.Style.DETAIL ? plainFont : italicFont);
+            g.drawString(cellText.getRun(i), x + runOffsets[i], y);
+        }
     }
 }
@@ -0,0 +1,253 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package unitypackage.viewer.gui.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import unitypackage.model.UnityAsset;
+
+/**
+ * Finds assets whose full path or GUID contains some text, ignoring case.
+ * <p>
+ * Every 3 character sequence (trigram) of the lower case text of each asset
+ * is indexed, so a search only has to check the assets that have all the
+ * trigrams of the search text. Assets are numbered in the order the results
+ * are listed, so results come out already sorted.
+ */
+class SearchIndex {
+
+    private static final int GRAM = 3;
+
+    /** In result order. */
+    private final SearchResult[] results;
+    private final String[] searchableText;
+    /** Trigram to the sorted numbers of the assets that contain it. */
+    private final TrigramTable postings;
+
+    /**
+     * @param root Where to find the tree nodes of the results.
+     */
+    SearchIndex(List<UnityAsset> fileAssets, UnityTreeNode.Directory root) {
+        int count = fileAssets.size();
+
+        // Each result makes its sort key once, so sorting only compares strings
+        results = new SearchResult[count];
+        for (int i = 0; i < count; i++) {
+            results[i] = new SearchResult(fileAssets.get(i), root);
+        }
+        Arrays.sort(results);
+
+        searchableText = new String[count];
+        postings = new TrigramTable();
+        for (int rank = 0; rank < count; rank++) {
+            String text = getSearchableText(results[rank].getAsset());
+            searchableText[rank] = text;
+
+            for (int c = 0; c + GRAM <= text.length(); c++) {
+                postings.add(trigram(text, c), rank);
+            }
+        }
+        postings.trim();
+    }
+
+    private static String getSearchableText(UnityAsset asset) {
+        return (asset.getFullPath() + "\t" + asset.getGuid()).toLowerCase();
+    }
+
+    private static long trigram(String s, int start) {
+        return ((long) s.charAt(start) << 32) | ((long) s.charAt(start + 1) << 16) | s.charAt(start + 2);
+    }
+
+    /**
+     * Results in display order.
+     */
+    List<SearchResult> search(String searchText) {
+        String query = searchText.toLowerCase();
+        if (query.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        if (query.length() < GRAM) {
+            // Too short to use the index
+            List<SearchResult> matches = new ArrayList<>();
+            for (int rank = 0; rank < results.length; rank++) {
+                if (searchableText[rank].contains(query)) {
+                    matches.add(results[rank]);
+                }
+            }
+            return matches;
+        }
+
+        List<int[]> lists = new ArrayList<>();
+        for (int c = 0; c + GRAM <= query.length(); c++) {
+            int[] docs = postings.get(trigram(query, c));
+            if (docs == null) {
+                return Collections.emptyList();
+            }
+            lists.add(docs);
+        }
+        // Start with the fewest candidates
+        lists.sort((a, b) -> Integer.compare(a.length, b.length));
+
+        int[] candidates = lists.get(0);
+        int candidateCount = candidates.length;
+        for (int l = 1; l < lists.size() && candidateCount > 0; l++) {
+            candidates = intersect(candidates, candidateCount, lists.get(l));
+            candidateCount = candidates.length;
+        }
+
+        // Having every trigram doesn't mean they're in the right order
+        List<SearchResult> matches = new ArrayList<>();
+        for (int i = 0; i < candidateCount; i++) {
+            int rank = candidates[i];
+            if (query.length() == GRAM || searchableText[rank].contains(query)) {
+                matches.add(results[rank]);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Results for the given assets, in display order.
+     */
+    List<SearchResult> resultsFor(Collection<UnityAsset> assets) {
+        Set<UnityAsset> wanted = new HashSet<>(assets);
+        List<SearchResult> matches = new ArrayList<>();
+        for (SearchResult result : results) {
+            if (wanted.contains(result.getAsset())) {
+                matches.add(result);
+            }
+        }
+        return matches;
+    }
+
+    private static int[] intersect(int[] a, int aLength, int[] b) {
+        int[] out = new int[Math.min(aLength, b.length)];
+        int n = 0;
+        int j = 0;
+        for (int i = 0; i < aLength && j < b.length; i++) {
+            int value = a[i];
+            while (j < b.length && b[j] < value) {
+                j++;
+            }
+            if (j < b.length && b[j] == value) {
+                out[n++] = value;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Hash table from trigram to the assets that contain it, using open addressing
+     * with primitive keys so indexing doesn't box millions of Longs.
+     */
+    private static class TrigramTable {
+        /** 3 chars only take 48 bits, so this is never a trigram. */
+        private static final long EMPTY = -1;
+
+        private long[] keys = new long[1 << 12];
+        private int[][] lists = new int[keys.length][];
+        private int[] sizes = new int[keys.length];
+        private int count;
+
+        {
+            Arrays.fill(keys, EMPTY);
+        }
+
+        private int slotOf(long key) {
+            int mask = keys.length - 1;
+            int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Assets have to be added in increasing order.
+         */
+        void add(long trigram, int asset) {
+            int slot = slotOf(trigram);
+            if (keys[slot] == EMPTY) {
+                if ((count + 1) * 2 > keys.length) {
+                    grow();
+                    slot = slotOf(trigram);
+                }
+                keys[slot] = trigram;
+                lists[slot] = new int[4];
+                count++;
+            }
+
+            int size = sizes[slot];
+            int[] list = lists[slot];
+            if (size > 0 && list[size - 1] == asset) {
+                // The same trigram can appear more than once in the text
+                return;
+            }
+            if (size == list.length) {
+                list = lists[slot] = Arrays.copyOf(list, size * 2);
+            }
+            list[size] = asset;
+            sizes[slot] = size + 1;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[][] oldLists = lists;
+            int[] oldSizes = sizes;
+            keys = new long[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            lists = new int[keys.length][];
+            sizes = new int[keys.length];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = slotOf(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    lists[slot] = oldLists[i];
+                    sizes[slot] = oldSizes[i];
+                }
+            }
+        }
+
+        /**
+         * Drops the unused space at the end of the lists once everything's been added.
+         */
+        void trim() {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY && lists[i].length != sizes[i]) {
+                    lists[i] = Arrays.copyOf(lists[i], sizes[i]);
+                }
+            }
+            sizes = null;
+        }
+
+        /**
+         * Null if no asset has the trigram.
+         */
+        int[] get(long trigram) {
+            int slot = slotOf(trigram);
+            return keys[slot] == EMPTY ? null : lists[slot];
+        }
+    }
+}
@@ -18,24 +18,51 @@
 
 package unitypackage.viewer.gui.model;
 
+import java.text.NumberFormat;
 import javax.swing.tree.TreeNode;
+import unitypackage.model.UnityAsset;
 
 public class SearchResult implements Comparable<SearchResult> {
 
-    private final UnityTreeNode.Asset assetNode;
+    /** Same as "%,d", without parsing a format string every time. */
+    private static final ThreadLocal<NumberFormat> SIZE_FORMAT = ThreadLocal.withInitial(NumberFormat::getIntegerInstance);
 
-    public SearchResult(UnityTreeNode.Asset assetNode) {
-        this.assetNode = assetNode;
+    private final UnityAsset asset;
+    private final UnityTreeNode.Directory root;
+    /** Lower case text, so comparing doesn't make new strings. */
+    private final String sortKey;
+    private String text;
+
+    SearchResult(UnityAsset asset, UnityTreeNode.Directory root) {
+        this.asset = asset;
+        this.root = root;
+        sortKey = makeText().toLowerCase();
+    }
+
+    UnityAsset getAsset() {
+        return asset;
     }
 
+    /**
+     * Makes the tree nodes on the way to the asset if they haven't been already.
+     */
     public TreeNode[] getTreeNodePath() {
-        return assetNode.getPath();
+        return root.findFileNode(asset).getPath();
     }
 
 
     @Override
     public int compareTo(SearchResult o) {
-        return toString().toLowerCase().compareTo(o.toString().toLowerCase());
+        return sortKey.compareTo(o.sortKey);
+    }
+
+    private String makeText() {
+        String fullPath = asset.getFullPath();
+        return new StringBuilder(fullPath.length() + 64)
+                .append(fullPath)
+                .append(" (").append(SIZE_FORMAT.get().format(asset.getSize())).append(" bytes) {")
+                .append(asset.getGuid()).append('}')
+                .toString();
     }
 
     /**
@@ -43,7 +70,9 @@ public int compareTo(SearchResult o) {
      */
     @Override
     public String toString() {
-        String s = String.format("%s (%,d bytes) {%s}", assetNode.getAssetPath(), assetNode.getAssetSize(), assetNode.getGuid());
-        return s;
+        if (text == null) {
+            text = makeText();
+        }
+        return text;
     }
 }
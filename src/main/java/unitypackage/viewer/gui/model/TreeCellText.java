@@ -0,0 +1,108 @@
+/*
+ * Basic .unitypackage Viewer
+ * Copyright (C) 2024 Michael Sabin
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package unitypackage.viewer.gui.model;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+
+/**
+ * The text shown for a node in the tree, formatted once when the node is first drawn.
+ * The name is followed by runs of detail text drawn in their own style.
+ */
+public final class TreeCellText {
+
+    public enum Style {
+        DETAIL,
+        DETAIL_ITALIC,
+        MISSING_ITALIC
+    }
+
+    private static final String[] NO_RUNS = new String[0];
+    private static final Style[] NO_STYLES = new Style[0];
+
+    private final String name;
+    private final String[] runs;
+    private final Style[] styles;
+    private final String plainText;
+
+    /** Font the offsets were measured with. */
+    private Font measuredFont;
+    private int[] runOffsets;
+
+    TreeCellText(String name) {
+        this(name, NO_RUNS, NO_STYLES);
+    }
+
+    TreeCellText(String name, String[] runs, Style[] styles) {
+        this.name = name;
+        this.runs = runs;
+        this.styles = styles;
+        StringBuilder sb = new StringBuilder(name);
+        for (String run : runs) {
+            sb.append(run);
+        }
+        plainText = sb.toString();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getRunCount() {
+        return runs.length;
+    }
+
+    public String getRun(int i) {
+        return runs[i];
+    }
+
+    public Style getStyle(int i) {
+        return styles[i];
+    }
+
+    /**
+     * Where each run starts, measured from the start of the name, and where the last one ends.
+     * Only measured again if the font changes.
+     * @param plain Metrics of the font, used for the name and plain runs.
+     * @param italic Metrics of the italic version of the font.
+     */
+    public int[] getRunOffsets(FontMetrics plain, FontMetrics italic) {
+        if (runOffsets == null || measuredFont != plain.getFont()) {
+            int[] offsets = new int[runs.length + 1];
+            int x = plain.stringWidth(name);
+            for (int i = 0; i < runs.length; i++) {
+                offsets[i] = x;
+                x += (styles[i] == Style.DETAIL ? plain : italic).stringWidth(runs[i]);
+            }
+            offsets[runs.length] = x;
+            runOffsets = offsets;
+            measuredFont = plain.getFont();
+        }
+        return runOffsets;
+    }
+
+    /**
+     * All the text without any styling.
+     */
+    @Override
+    public String toString() {
+        return plainText;
+    }
+}
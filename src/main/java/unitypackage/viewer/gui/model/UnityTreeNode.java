@@ -20,14 +20,24 @@
 
 import java.awt.image.BufferedImage;
 import java.nio.file.Path;
-import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.TreeNode;
 import unitypackage.model.UnityAsset;
 
 public abstract class UnityTreeNode extends DefaultMutableTreeNode implements Comparable<UnityTreeNode> {
 
+    private TreeCellText cellText;
+    /** Lower case, so sorting doesn't change the case of both sides of every comparison. */
+    private String sortKey;
+
     protected UnityTreeNode(Path userObject, boolean allowsChildren) {
         super(userObject, allowsChildren);
     }
@@ -42,9 +52,7 @@ public int compareTo(UnityTreeNode o) {
         if ((this instanceof Directory && o instanceof Directory) ||
             (this instanceof Asset && o instanceof Asset))
         {
-            String thisVal = getStringForSearchingAndSorting().toLowerCase();
-            String thatVal = o.getStringForSearchingAndSorting().toLowerCase();
-            compare = thisVal.compareTo(thatVal);
+            compare = getSortKey().compareTo(o.getSortKey());
         } else if (this instanceof Directory) {
             compare = -1;
         } else {
@@ -64,18 +72,67 @@ public int compareTo(UnityTreeNode o) {
     abstract public boolean hasSize();
     abstract public long getAssetSize();
 
+    abstract public boolean hasPreviewImage();
     abstract public BufferedImage getPreviewImage();
 
     abstract public String getStringForSearchingAndSorting();
 
+    private String getSortKey() {
+        if (sortKey == null) {
+            sortKey = getStringForSearchingAndSorting().toLowerCase();
+        }
+        return sortKey;
+    }
+
+    /**
+     * What the tree shows for this node, formatted the first time it's needed
+     * so drawing the tree doesn't format anything.
+     */
+    public TreeCellText getCellText() {
+        if (cellText == null) {
+            cellText = makeCellText();
+        }
+        return cellText;
+    }
+
+    abstract protected TreeCellText makeCellText();
+
+    /**
+     * Plain text of the node, used by the tree to find nodes by typing.
+     */
+    @Override
+    public String toString() {
+        return getCellText().toString();
+    }
+
     // ...................................................................................
 
+    /**
+     * The child nodes of a directory are only made, and sorted, the first time
+     * something asks for them (usually the tree when the directory is expanded),
+     * so huge packages don't need a node for every asset up front.
+     */
     static class Directory extends UnityTreeNode {
 
         private final Path relativePathFromParent;
 
         private UnityAsset asset;
 
+        /**
+         * Child directories by name, so finding one doesn't mean going through every child.
+         */
+        private final Map<Path, Directory> childDirectories = new HashMap<>();
+
+        /**
+         * File assets directly in this directory, until the child nodes are made.
+         */
+        private List<UnityAsset> pendingFiles = new ArrayList<>();
+
+        /**
+         * Nodes of the file assets, once the child nodes are made.
+         */
+        private Map<UnityAsset, Asset> fileNodes;
+
         public Directory(Path relativePathFromParent) {
             super(relativePathFromParent.getFileName(), true);
             this.relativePathFromParent = relativePathFromParent;
@@ -116,6 +173,11 @@ public long getAssetSize() {
             throw new UnsupportedOperationException();
         }
 
+        @Override
+        public boolean hasPreviewImage() {
+            return false;
+        }
+
         @Override
         public BufferedImage getPreviewImage() {
             return null;
@@ -132,52 +194,129 @@ public String getStringForSearchingAndSorting() {
             }
         }
 
-        public void recursiveSort() {
-            if (this.children ==  null)
+        public boolean startsWith(Path relativePathFromOtherParent) {
+            return relativePathFromParent.startsWith(relativePathFromOtherParent);
+        }
+
+        /**
+         * Finds the child directory with the name, adding it if it doesn't exist.
+         */
+        public Directory findOrCreateChildDirectory(Path name) {
+            Directory child = childDirectories.get(name);
+            if (child == null) {
+                child = new Directory(name);
+                child.parent = this;
+                childDirectories.put(name, child);
+            }
+            return child;
+        }
+
+        public void addFileAsset(UnityAsset fileAsset) {
+            pendingFiles.add(fileAsset);
+        }
+
+        /**
+         * Makes and sorts the child nodes if it hasn't been done yet.
+         */
+        private void materializeChildren() {
+            if (pendingFiles == null) {
                 return;
-            this.children.sort(null);
-
-            Enumeration<TreeNode> em = children();
-            while (em.hasMoreElements()) {
-                Object element = em.nextElement();
-                if (element instanceof Directory) {
-                    ((Directory)element).recursiveSort();
-                }
             }
+            List<UnityAsset> files = pendingFiles;
+            pendingFiles = null;
+
+            fileNodes = new HashMap<>(files.size() * 4 / 3 + 1);
+            for (Directory child : childDirectories.values()) {
+                // Its parent was already set so its path could be found before now
+                child.setParent(null);
+                add(child);
+            }
+            for (UnityAsset fileAsset : files) {
+                Asset fileNode = new Asset(fileAsset);
+                fileNodes.put(fileAsset, fileNode);
+                add(fileNode);
+            }
+            if (children != null) {
+                children.sort(null);
+            }
+        }
 
+        @Override
+        public int getChildCount() {
+            materializeChildren();
+            return super.getChildCount();
         }
 
-        public boolean startsWith(Path relativePathFromOtherParent) {
-            return relativePathFromParent.startsWith(relativePathFromOtherParent);
+        @Override
+        public TreeNode getChildAt(int index) {
+            materializeChildren();
+            return super.getChildAt(index);
+        }
+
+        @Override
+        public int getIndex(TreeNode aChild) {
+            materializeChildren();
+            return super.getIndex(aChild);
+        }
+
+        @Override
+        public Enumeration<TreeNode> children() {
+            materializeChildren();
+            return super.children();
         }
 
         /**
-         * String used when displaying the node in the tree.
+         * The node for a file asset somewhere under this directory,
+         * making the nodes along the way. Null if it's not in the tree.
          */
+        public Asset findFileNode(UnityAsset fileAsset) {
+            Path path = fileAsset.getFullPathAsPath();
+            Directory directory = this;
+            for (int i = 0; i < path.getNameCount() - 1 && directory != null; i++) {
+                directory = directory.childDirectories.get(path.getName(i));
+            }
+            if (directory == null) {
+                return null;
+            }
+            directory.materializeChildren();
+            return directory.fileNodes.get(fileAsset);
+        }
+
+        /**
+         * All the file assets in or under this directory, without making any nodes.
+         */
+        public void collectFileAssets(Collection<UnityAsset> fileAssets) {
+            if (pendingFiles != null) {
+                fileAssets.addAll(pendingFiles);
+            } else {
+                fileAssets.addAll(fileNodes.keySet());
+            }
+            for (Directory child : childDirectories.values()) {
+                child.collectFileAssets(fileAssets);
+            }
+        }
+
         @Override
-        public String toString() {
+        protected TreeCellText makeCellText() {
             final Path fileName = relativePathFromParent.getFileName();
 
             if (fileName == null) { // must be the root node
                 if (asset != null)
                     throw new RuntimeException("Can this happen?");
-                return "<root>";
+                return new TreeCellText("<root>");
             }
 
-            StringBuilder sb = new StringBuilder();
-
-            sb.append("<html>")
-              .append(fileName);
             if (asset != null) {
-                sb.append(" <i><font color=#bbbbbb>{").append(asset.getGuid()).append("}</font></i>");
+                return new TreeCellText(fileName.toString(),
+                                        new String[] { " {" + asset.getGuid() + "}" },
+                                        new TreeCellText.Style[] { TreeCellText.Style.DETAIL_ITALIC });
             } else {
                 // I've seen some .unitypackage where directories get their own GUID and associated data.
                 // I've also seen some where directories have no GUID, but are implied to exist by the asset paths.
-                sb.append(" <i><font color=#ffaaaa>{missing directory asset.meta}</font></i>");
+                return new TreeCellText(fileName.toString(),
+                                        new String[] { " {missing directory asset.meta}" },
+                                        new TreeCellText.Style[] { TreeCellText.Style.MISSING_ITALIC });
             }
-
-            sb.append("</html>");
-            return sb.toString();
         }
     }
 
@@ -185,8 +324,14 @@ public String toString() {
 
     public static class Asset extends UnityTreeNode {
 
+        private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("MM/dd/yy")
+                                                                              .withZone(ZoneId.systemDefault());
+
+        private final boolean hasPreview;
+
         public Asset(UnityAsset userObject) {
             super(userObject, false);
+            hasPreview = userObject.hasPreview();
         }
 
         public UnityAsset getAsset() {
@@ -218,6 +363,11 @@ public long getAssetSize() {
             return getAsset().getSize();
         }
 
+        @Override
+        public boolean hasPreviewImage() {
+            return hasPreview;
+        }
+
         @Override
         public BufferedImage getPreviewImage() {
             return getAsset().getPreview();
@@ -228,9 +378,7 @@ public String getAssetPath() {
         }
 
         public String getDateModified() {
-            SimpleDateFormat fmt = new SimpleDateFormat("MM/dd/yy");
-            String s = fmt.format(getAsset().getDateModified());
-            return s;
+            return DATE_FORMAT.format(getAsset().getDateModified().toInstant());
         }
 
         @Override
@@ -238,21 +386,29 @@ public String getStringForSearchingAndSorting() {
             return getAssetName()+ "\t" + getGuid();
         }
 
-        /**
-         * String used when displaying the node in the tree.
-         */
         @Override
-        public String toString() {
+        protected TreeCellText makeCellText() {
             String guid = getGuid();
+            TreeCellText.Style guidStyle;
             if (guid == null) {
-                guid = "<font color=#ffaaaa>{missing asset.meta}</font>";
+                guid = "{missing asset.meta}";
+                guidStyle = TreeCellText.Style.MISSING_ITALIC;
             } else {
-                guid = "{"+guid+"}";
+                guid = "{" + guid + "}";
+                guidStyle = TreeCellText.Style.DETAIL_ITALIC;
             }
 
-            String s = String.format("<html>%s <font color=#bbbbbb>(%,d bytes) <i>%s</i> %s</font></html>",
-                                     getAssetName(), getAssetSize(), guid, getDateModified());
-            return s;
+            String[] runs = {
+                String.format(" (%,d bytes) ", getAssetSize()),
+                guid,
+                " " + getDateModified()
+            };
+            TreeCellText.Style[] styles = {
+                TreeCellText.Style.DETAIL,
+                guidStyle,
+                TreeCellText.Style.DETAIL
+            };
+            return new TreeCellText(getAssetName(), runs, styles);
         }
 
     }
@@ -21,24 +21,28 @@
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Enumeration;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
 import javax.swing.tree.DefaultTreeModel;
-import javax.swing.tree.TreeNode;
+import unitypackage.model.ChannelFileWriter;
+import unitypackage.model.ContentIndex;
+import unitypackage.model.Metrics;
+import unitypackage.model.PackageDiff;
 import unitypackage.model.UnityAsset;
 import unitypackage.model.UnityPackage;
+import unitypackage.model.UnityPackageIndexCache;
 
 public class UnitypackageGuiModel {
 
+    private final UnityPackageIndexCache indexCache =
+            new UnityPackageIndexCache(UnityPackageIndexCache.getDefaultCacheDirectory());
+
     private UnityPackage currentUnitypackage;
 
     public File getCurrentUnitypackage() {
@@ -47,120 +51,115 @@ public File getCurrentUnitypackage() {
 
     public void extractFile(UnityAsset asset, Path outputFile) throws IOException {
         try (InputStream is = currentUnitypackage.getFileStream(asset)) {
-            Files.copy(is, outputFile, StandardCopyOption.REPLACE_EXISTING);
+            new ChannelFileWriter().write(outputFile, is, asset.getSize());
         }
     }
 
+    /**
+     * Extracts all the assets in one pass, under their full Unity paths in the output directory.
+     */
+    public List<Path> extractFiles(Collection<UnityAsset> assets, Path outputDirectory) throws IOException {
+        return currentUnitypackage.extractAssets(assets, outputDirectory);
+    }
+
+    /**
+     * All the file assets in or under the given nodes, without duplicates.
+     */
+    public static List<UnityAsset> getFileAssetsUnder(List<UnityTreeNode> nodes) {
+        Set<UnityAsset> assets = new LinkedHashSet<>();
+        for (UnityTreeNode node : nodes) {
+            if (node instanceof UnityTreeNode.Asset) {
+                assets.add(((UnityTreeNode.Asset) node).getAsset());
+            } else {
+                // Without making nodes for everything under it
+                ((UnityTreeNode.Directory) node).collectFileAssets(assets);
+            }
+        }
+        return new ArrayList<>(assets);
+    }
+
+    /**
+     * What changed from the open package to another version of it.
+     */
+    public PackageDiff compareWith(File newerUnitypackage) throws IOException {
+        return PackageDiff.compare(currentUnitypackage.getUnitypackageFile(), newerUnitypackage, indexCache);
+    }
+
     // ===================================================================================
     // Search model
 
     // TODO also search directories
-    private final List<UnityTreeNode.Asset> assetNodesForSearching = new ArrayList<>();
+    private SearchIndex searchIndex = new SearchIndex(Collections.emptyList(), null);
 
+    /**
+     * Assets whose full path or GUID contains the text, ignoring case, in display order.
+     */
     public List<SearchResult> search(String searchText) {
+        return searchIndex.search(searchText);
+    }
 
+    private ContentIndex contentIndex;
 
-        List<SearchResult> searchResults = new ArrayList<>();
-
-        for (UnityTreeNode.Asset pathsInPathname : assetNodesForSearching) {
-            if (pathsInPathname.getStringForSearchingAndSorting().toLowerCase().contains(searchText.toLowerCase())) {
-                searchResults.add(new SearchResult(pathsInPathname));
-            }
+    /**
+     * Text assets containing all the words, in display order.
+     * The first time, the text assets have to be read, unless it's cached.
+     */
+    public List<SearchResult> searchContents(String words) throws IOException {
+        if (contentIndex == null || contentIndex.getUnityPackage() != currentUnitypackage) {
+            contentIndex = indexCache.openContentIndex(currentUnitypackage);
         }
-
-        Collections.sort(searchResults);
-
-        return searchResults;
+        return searchIndex.resultsFor(contentIndex.search(words));
     }
 
     // ===================================================================================
     // Tree model
 
-    private static final UnityAssetCompare unityAssetCompare = new UnityAssetCompare();
-    private static class UnityAssetCompare implements Comparator<UnityAsset> {
-        @Override
-        public int compare(UnityAsset o1, UnityAsset o2) {
-            return o1.getFullPath().compareTo(o2.getFullPath());
-        }
-    }
-
     /**
+     * Only the directories are made here. The nodes for the files in a directory
+     * are made when the directory is first expanded.
+     *
      * @param unitypackagePath Path to the ".unitypackage" file.
      */
     public DefaultTreeModel buildTreeModel(File unitypackagePath) throws IOException {
 
-        currentUnitypackage = new UnityPackage(unitypackagePath);
-
-        List<UnityAsset> unityAssets = currentUnitypackage.getUnityAssetList();
-
-        UnityTreeNode.Directory root = new UnityTreeNode.Directory(Paths.get("(root)"));
-
-        Map<Boolean, List<UnityAsset>> split = unityAssets.stream().collect(Collectors.groupingBy(a -> a.isProbablyDirectory()));
-        List<UnityAsset> dirEntries = split.get(true);
-        List<UnityAsset> fileEntries = split.get(false);
-        fileEntries.sort(unityAssetCompare);
-
-        if (dirEntries != null) {
-            // I suppose it's possible for no directories to exist
-            dirEntries.sort(unityAssetCompare);
-
-            // Build up a directory tree of the identified directory assets
-            for (UnityAsset directoryAssetEntry : dirEntries) {
-                UnityTreeNode.Directory currentDirectory = root;
-                Path dirPath = directoryAssetEntry.getFullPathAsPath();
+        currentUnitypackage = indexCache.open(unitypackagePath);
 
-                for (int i = 0; i < dirPath.getNameCount(); i++) {
-                    Path pathPart = dirPath.getName(i);
-                    currentDirectory = findOrCreateDirectoryNode(currentDirectory, pathPart);
-                }
-
-                currentDirectory.setAsset(directoryAssetEntry);
-            }
+        try (Metrics.Span span = Metrics.start(Metrics.Phase.TREE_BUILD)) {
+            span.setDetail(unitypackagePath.getPath());
+            return buildTreeModel(currentUnitypackage.getUnityAssetList());
         }
-
-        // Now add the file assets as children in the tree.
-        // If somehow there's a missing directory, it will create it.
-        for (UnityAsset asset : fileEntries) {
-
-            UnityTreeNode.Directory currentDir = root;
-            Path fileAssetPath = asset.getFullPathAsPath();
-
-            for (int i = 0; i < fileAssetPath.getNameCount()-1; i++) {
-                Path pathPart = fileAssetPath.getName(i);
-                currentDir = findOrCreateDirectoryNode(currentDir, pathPart);
-            }
-
-            UnityTreeNode.Asset assetNode = new UnityTreeNode.Asset(asset);
-            currentDir.add(assetNode);
-            assetNodesForSearching.add(assetNode);
-        }
-
-        root.recursiveSort();
-        DefaultTreeModel treeModel = new DefaultTreeModel(root);
-        return treeModel;
     }
 
-    private static UnityTreeNode.Directory findOrCreateDirectoryNode(UnityTreeNode parent, Path relativePathFromParent) {
+    private DefaultTreeModel buildTreeModel(List<UnityAsset> unityAssets) {
+        List<UnityAsset> fileAssetsForSearching = new ArrayList<>();
 
-        @SuppressWarnings("unchecked")
-        Enumeration<TreeNode> kids = parent.children();
-        while (kids.hasMoreElements()) {
-            Object nextKid = kids.nextElement();
+        UnityTreeNode.Directory root = new UnityTreeNode.Directory(Paths.get("(root)"));
 
-            if (nextKid instanceof UnityTreeNode.Asset) {
-                continue;
-            }
+        // If somehow there's a missing directory, it will create it.
+        for (UnityAsset asset : unityAssets) {
+            UnityTreeNode.Directory currentDirectory = root;
+            Path assetPath = asset.getFullPathAsPath();
 
-            UnityTreeNode.Directory dn = (UnityTreeNode.Directory)nextKid;
-            if (dn.startsWith(relativePathFromParent)) {
-                return dn;
+            if (asset.isProbablyDirectory()) {
+                for (int i = 0; i < assetPath.getNameCount(); i++) {
+                    currentDirectory = currentDirectory.findOrCreateChildDirectory(assetPath.getName(i));
+                }
+                currentDirectory.setAsset(asset);
+            } else {
+                for (int i = 0; i < assetPath.getNameCount()-1; i++) {
+                    currentDirectory = currentDirectory.findOrCreateChildDirectory(assetPath.getName(i));
+                }
+                currentDirectory.addFileAsset(asset);
+                fileAssetsForSearching.add(asset);
             }
         }
 
-        UnityTreeNode.Directory newNode = new UnityTreeNode.Directory(relativePathFromParent);
-        parent.add(newNode);
+        searchIndex = new SearchIndex(fileAssetsForSearching, root);
 
-        return newNode;
+        // Directories always allow children, so the tree doesn't need to make
+        // the child nodes to know a directory isn't a leaf
+        DefaultTreeModel treeModel = new DefaultTreeModel(root, true);
+        return treeModel;
     }
 
 }